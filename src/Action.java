@@ -5,4 +5,8 @@ public interface Action {
 
     void executeAction(EventScheduler scheduler);
 
+    default ActionKind getKind() {
+        return ActionKind.ACTIVITY;
+    }
+
 }
@@ -23,7 +23,7 @@ public final class Activity implements Action {
     }
 
     private void executeActivityAction(EventScheduler scheduler) {
-        switch (this.entity.kind) {
+        switch (this.entity.getKind()) {
             case SAPLING:
                 entity.executeSaplingActivity(this.world, this.imageStore, scheduler);
                 break;
@@ -40,7 +40,7 @@ public final class Activity implements Action {
                 entity.executeDudeFullActivity(this.world, this.imageStore, scheduler);
                 break;
             default:
-                throw new UnsupportedOperationException(String.format("executeActivityAction not supported for %s", this.entity.kind));
+                throw new UnsupportedOperationException(String.format("executeActivityAction not supported for %s", this.entity.getKind()));
         }
     }
 }
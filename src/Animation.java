@@ -20,6 +20,9 @@ public final class Animation implements Action {
         return new Animation(ActionKind.ANIMATION, entity, null, null, repeatCount);
     }
 
+    public ActionKind getKind() {
+        return this.kind;
+    }
 
     public void executeAction(EventScheduler scheduler) {
         this.executeAnimationAction(scheduler);
@@ -29,7 +32,8 @@ public final class Animation implements Action {
         entity.nextImage();
 
         if (this.repeatCount != 1) {
-            scheduler.scheduleEvent(this.entity, createAnimationAction(this.entity, Math.max(this.repeatCount - 1, 0)), entity.getAnimationPeriod());
+            this.repeatCount = Math.max(this.repeatCount - 1, 0);
+            scheduler.repeatCurrentEvent(entity.getAnimationPeriod());
         }
     }
 }
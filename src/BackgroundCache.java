@@ -0,0 +1,104 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * The background layer rasterized into square chunks of tiles.
+ *
+ * Backgrounds almost never change, so a full redraw of the view blits the
+ * few chunks it overlaps instead of drawing every tile. A chunk is
+ * rendered when first drawn and dropped when WorldModel.setBackgroundCell
+ * touches it. At most budget bytes of chunk pixels are kept, least
+ * recently drawn first out, but never fewer chunks than one view overlaps.
+ */
+public final class BackgroundCache {
+    public static final int CHUNK_TILES = 16;
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private final PApplet screen;
+    private final WorldModel world;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int maxChunks;
+    private final LinkedHashMap<Long, PGraphics> chunks;
+
+    // chunks rendered so far, including re-renders after eviction or invalidation
+    public int rendered;
+
+    /*
+       budget is in bytes of pixels; 0 or less keeps every chunk drawn.
+     */
+    public BackgroundCache(PApplet screen, WorldModel world, int tileWidth, int tileHeight, Viewport viewport, long budget) {
+        this.screen = screen;
+        this.world = world;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        int minChunks = (viewport.numCols / CHUNK_TILES + 2) * (viewport.numRows / CHUNK_TILES + 2);
+        long chunkBytes = (long) CHUNK_TILES * tileWidth * CHUNK_TILES * tileHeight * Integer.BYTES;
+        this.maxChunks = budget <= 0 ? Integer.MAX_VALUE : (int) Math.max(minChunks, Math.min(Integer.MAX_VALUE, budget / chunkBytes));
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, PGraphics> eldest) {
+                return size() > BackgroundCache.this.maxChunks;
+            }
+        };
+    }
+
+    public int size() {
+        return this.chunks.size();
+    }
+
+    public void invalidate(int x, int y) {
+        this.chunks.remove(Point.pack(x / CHUNK_TILES, y / CHUNK_TILES));
+    }
+
+    public void clear() {
+        this.chunks.clear();
+    }
+
+    /*
+       Draws the background of the whole viewport into target, whose
+       origin is the viewport's top left cell.
+     */
+    public void draw(PGraphics target, Viewport viewport) {
+        int lastCol = Math.min(viewport.col + viewport.numCols, this.world.numCols) - 1;
+        int lastRow = Math.min(viewport.row + viewport.numRows, this.world.numRows) - 1;
+        for (int chunkRow = viewport.row / CHUNK_TILES; chunkRow <= lastRow / CHUNK_TILES; chunkRow++) {
+            for (int chunkCol = viewport.col / CHUNK_TILES; chunkCol <= lastCol / CHUNK_TILES; chunkCol++) {
+                target.image(chunk(chunkCol, chunkRow),
+                        (chunkCol * CHUNK_TILES - viewport.col) * this.tileWidth,
+                        (chunkRow * CHUNK_TILES - viewport.row) * this.tileHeight);
+            }
+        }
+    }
+
+    private PImage chunk(int chunkCol, int chunkRow) {
+        Long key = Point.pack(chunkCol, chunkRow);
+        PGraphics chunk = this.chunks.get(key);
+        if (chunk == null) {
+            chunk = render(chunkCol, chunkRow);
+            this.chunks.put(key, chunk);
+        }
+        return chunk;
+    }
+
+    private PGraphics render(int chunkCol, int chunkRow) {
+        int firstCol = chunkCol * CHUNK_TILES;
+        int firstRow = chunkRow * CHUNK_TILES;
+        int cols = Math.min(CHUNK_TILES, this.world.numCols - firstCol);
+        int rows = Math.min(CHUNK_TILES, this.world.numRows - firstRow);
+        PGraphics chunk = this.screen.createGraphics(cols * this.tileWidth, rows * this.tileHeight);
+        chunk.beginDraw();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                PImage image = ImageStore.getCurrentImage(this.world.getBackgroundCell(firstCol + col, firstRow + row));
+                ImageStore.draw(chunk, image, col * this.tileWidth, row * this.tileHeight);
+            }
+        }
+        chunk.endDraw();
+        this.rendered++;
+        return chunk;
+    }
+}
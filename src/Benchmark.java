@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Headless batch runner: simulates a world for a fixed number of
+ * simulated seconds without a Processing window and reports scheduler
+ * throughput, wall time, allocation rate and peak heap. Wall time and
+ * throughput cover only the simulation, not loading the world.
+ *
+ * Usage: VirtualWorld -bench world.sav --sim-seconds 3600 [--step 1.0]
+ *        [--json bench.json] [other VirtualWorld flags]
+ */
+public final class Benchmark {
+    public static final String SIM_SECONDS_OPTION = "--sim-seconds";
+    public static final String STEP_OPTION = "--step";
+    public static final String JSON_OPTION = "--json";
+    public static final double DEFAULT_SIM_SECONDS = 60;
+    public static final double DEFAULT_STEP = 1.0;
+    public static final String DEFAULT_JSON_FILE = "bench.json";
+
+    public String[] worldArgs;
+    public double simSeconds;
+    public double step;
+    public String jsonFile;
+
+    public long loadNanos;
+    public long wallNanos;
+    public long[] executedEvents;
+    public int peakQueueDepth;
+    public int finalQueueDepth;
+    public int entityCount;
+    public long allocatedBytes;
+    public long peakHeapBytes;
+
+    public Benchmark(String[] worldArgs, double simSeconds, double step, String jsonFile) {
+        this.worldArgs = worldArgs;
+        this.simSeconds = simSeconds;
+        this.step = step;
+        this.jsonFile = jsonFile;
+    }
+
+    public static Benchmark parseCommandLine(String[] args) {
+        List<String> worldArgs = new ArrayList<>();
+        double simSeconds = DEFAULT_SIM_SECONDS;
+        double step = DEFAULT_STEP;
+        String jsonFile = DEFAULT_JSON_FILE;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case SIM_SECONDS_OPTION -> simSeconds = Double.parseDouble(optionValue(args, ++i));
+                case STEP_OPTION -> step = Double.parseDouble(optionValue(args, ++i));
+                case JSON_OPTION -> jsonFile = optionValue(args, ++i);
+                default -> worldArgs.add(args[i]);
+            }
+        }
+        if (step <= 0) {
+            throw new IllegalArgumentException(STEP_OPTION + " must be positive");
+        }
+
+        return new Benchmark(worldArgs.toArray(new String[0]), simSeconds, step, jsonFile);
+    }
+
+    private static String optionValue(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(String.format("%s requires a value", args[index - 1]));
+        }
+        return args[index];
+    }
+
+    public void run() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        VirtualWorld virtualWorld = VirtualWorld.headless(this.worldArgs);
+        this.loadNanos = System.nanoTime() - start;
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        double remaining = this.simSeconds;
+        while (remaining > 0) {
+            double frame = Math.min(this.step, remaining);
+            virtualWorld.update(frame);
+            remaining -= frame;
+        }
+
+        this.wallNanos = System.nanoTime() - start;
+        this.allocatedBytes = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        this.peakHeapBytes = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            this.peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+
+        EventScheduler scheduler = virtualWorld.scheduler;
+        this.executedEvents = scheduler.executedEvents.clone();
+        this.peakQueueDepth = scheduler.peakQueueDepth;
+        this.finalQueueDepth = scheduler.liveEvents;
+        this.entityCount = virtualWorld.world.entities.size();
+    }
+
+    public long totalEvents() {
+        long total = 0;
+        for (long count : this.executedEvents) {
+            total += count;
+        }
+        return total;
+    }
+
+    public double wallSeconds() {
+        return this.wallNanos / 1e9;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("simulated seconds:  %.3f%n", this.simSeconds));
+        sb.append(String.format("load time:          %.3f s%n", this.loadNanos / 1e9));
+        sb.append(String.format("wall time:          %.3f s%n", wallSeconds()));
+        sb.append(String.format("events executed:    %d (%.0f/s)%n", totalEvents(), totalEvents() / wallSeconds()));
+        for (ActionKind kind : ActionKind.values()) {
+            sb.append(String.format("  %-17s %d%n", kind.name().toLowerCase() + ":", this.executedEvents[kind.ordinal()]));
+        }
+        sb.append(String.format("peak queue depth:   %d%n", this.peakQueueDepth));
+        sb.append(String.format("final queue depth:  %d%n", this.finalQueueDepth));
+        sb.append(String.format("entities:           %d%n", this.entityCount));
+        sb.append(String.format("allocation rate:    %.1f MB/s%n", this.allocatedBytes / 1e6 / wallSeconds()));
+        sb.append(String.format("peak heap:          %.1f MB%n", this.peakHeapBytes / 1e6));
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder kinds = new StringBuilder();
+        for (ActionKind kind : ActionKind.values()) {
+            if (kinds.length() > 0) {
+                kinds.append(", ");
+            }
+            kinds.append(String.format("\"%s\": %d", kind.name().toLowerCase(), this.executedEvents[kind.ordinal()]));
+        }
+        return String.format(Locale.ROOT, """
+                {
+                  "args": [%s],
+                  "simSeconds": %.6f,
+                  "loadSeconds": %.6f,
+                  "wallSeconds": %.6f,
+                  "eventsExecuted": %d,
+                  "eventsPerSecond": %.1f,
+                  "eventsByKind": {%s},
+                  "peakQueueDepth": %d,
+                  "finalQueueDepth": %d,
+                  "entities": %d,
+                  "allocatedBytes": %d,
+                  "allocationBytesPerSecond": %.1f,
+                  "peakHeapBytes": %d
+                }
+                """, jsonArgs(), this.simSeconds, this.loadNanos / 1e9, wallSeconds(), totalEvents(), totalEvents() / wallSeconds(), kinds,
+                this.peakQueueDepth, this.finalQueueDepth, this.entityCount, this.allocatedBytes,
+                this.allocatedBytes / wallSeconds(), this.peakHeapBytes);
+    }
+
+    private String jsonArgs() {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (String arg : this.worldArgs) {
+            joiner.add('"' + arg.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"');
+        }
+        return joiner.toString();
+    }
+
+    public static void main(String[] args) {
+        Benchmark benchmark = parseCommandLine(args);
+        benchmark.run();
+        System.out.print(benchmark.report());
+
+        try {
+            Files.writeString(Path.of(benchmark.jsonFile), benchmark.toJson(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
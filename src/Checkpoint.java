@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes a running world and its scheduled events to a checkpoint file,
+ * and resumes a world and scheduler from one.
+ *
+ * The file is a header followed by segments. A full segment holds the
+ * grid in the WorldSnapshot encoding and every entity; each delta
+ * segment appended after it holds only the entities that changed since
+ * the previous segment, and the orders of those removed. Every entity
+ * record carries the entity's pending events, so unchanged entities
+ * keep the events recorded for them earlier.
+ *
+ * Layout (big-endian):
+ *   header    magic "VCKP", version
+ *   segment   type (FULL or DELTA), body length, body
+ *   full      the grid sections of a WorldSnapshot, then a state body
+ *   state     current time, next entity order, entity count, entity
+ *             records, removed count, removed entity orders
+ *
+ * A full checkpoint is written to tempPath, forced to disk and then moved
+ * over the file, so a crash mid-rewrite leaves the previous checkpoint in
+ * place. A delta segment cut short by a crash mid-write is ignored on
+ * resume.
+ * Entities' random streams are not saved; they are split afresh from
+ * the world seed when the world is resumed.
+ */
+public final class Checkpoint {
+    public static final int MAGIC = 0x56434b50; // "VCKP" read as a big-endian int
+    public static final int VERSION = 1;
+    public static final int FULL_EVERY = 16;
+
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    private static final int SEGMENT_HEADER = 1 + Integer.BYTES;
+    private static final int RECORD_BYTES = Long.BYTES + 1 + 7 * Integer.BYTES + 3 * Double.BYTES + Short.BYTES + Integer.BYTES;
+    private static final int EVENT_BYTES = 1 + Integer.BYTES + Double.BYTES + Long.BYTES;
+
+    public final Path path;
+    public final Path tempPath;
+    public int deltasSinceFull;
+    public int lastEntities;
+    public long lastBytes;
+
+    private WorldModel world;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    /*
+       An entity as read from the file, with its pending events.
+     */
+    private static final class Record {
+        private long order;
+        private EntityKind kind;
+        private String id;
+        private int x;
+        private int y;
+        private int resourceLimit;
+        private int resourceCount;
+        private int health;
+        private int healthLimit;
+        private int imageIndex;
+        private double actionPeriod;
+        private double animationPeriod;
+        private double animationStart;
+        private ActionKind[] eventKinds;
+        private int[] repeatCounts;
+        private double[] times;
+        private long[] sequences;
+    }
+
+    public Checkpoint(Path path) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.buffer = ByteBuffer.allocateDirect(1 << 16);
+    }
+
+    /*
+       Appends a delta, or rewrites the file with a full checkpoint when
+       there is none for this world yet or FULL_EVERY deltas have piled up.
+     */
+    public void write(WorldModel world, EventScheduler scheduler) throws IOException {
+        if (this.world != world || this.deltasSinceFull >= FULL_EVERY) {
+            writeFull(world, scheduler);
+        } else {
+            writeDelta(world, scheduler);
+        }
+    }
+
+    public void writeFull(WorldModel world, EventScheduler scheduler) throws IOException {
+        this.world = null;
+        world.removedSinceCheckpoint = new ArrayList<>();
+
+        byte[] grid = WorldSnapshot.gridBytes(world);
+        this.buffer.clear();
+        ensure(2 * Integer.BYTES + SEGMENT_HEADER + grid.length);
+        this.buffer.putInt(MAGIC).putInt(VERSION);
+        int segment = startSegment(FULL);
+        this.buffer.put(grid);
+        putState(world, scheduler, true);
+        endSegment(segment);
+
+        try (FileChannel temp = FileChannel.open(this.tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            flush(temp, 0);
+            temp.force(true);
+        }
+        close();
+        Files.move(this.tempPath, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.world = world;
+        this.deltasSinceFull = 0;
+    }
+
+    public void writeDelta(WorldModel world, EventScheduler scheduler) throws IOException {
+        if (this.world != world) {
+            writeFull(world, scheduler);
+            return;
+        }
+        this.world = null;
+        this.buffer.clear();
+        int segment = startSegment(DELTA);
+        putState(world, scheduler, false);
+        endSegment(segment);
+
+        flush(this.channel, this.channel.size());
+        this.world = world;
+        this.deltasSinceFull++;
+    }
+
+    public void close() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+        this.world = null;
+    }
+
+    /*
+       Fills an empty world and scheduler from the checkpoint file. The
+       pending events go into the scheduler's queue in a single batch.
+     */
+    public static void resume(Path path, WorldModel world, EventScheduler scheduler, ImageStore imageStore) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            resume(buffer, world, scheduler, imageStore);
+        }
+    }
+
+    public static void resume(ByteBuffer buffer, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
+        if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a checkpoint");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException(String.format("unsupported checkpoint version %d", version));
+        }
+
+        Map<Long, Record> records = new HashMap<>();
+        boolean full = false;
+        double currentTime = 0;
+        long nextOrder = 0;
+        while (buffer.remaining() >= SEGMENT_HEADER) {
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            if (length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer body = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+
+            if (type == FULL && !full) {
+                WorldSnapshot.readGrid(world, body, imageStore);
+                full = true;
+            } else if (type != DELTA || !full) {
+                throw new IllegalArgumentException("corrupt checkpoint");
+            }
+            currentTime = body.getDouble();
+            nextOrder = body.getLong();
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                Record record = getRecord(body);
+                records.put(record.order, record);
+            }
+            int removed = body.getInt();
+            for (int i = 0; i < removed; i++) {
+                records.remove(body.getLong());
+            }
+        }
+        if (!full) {
+            throw new IllegalArgumentException("checkpoint has no full segment");
+        }
+
+        List<Record> sorted = new ArrayList<>(records.values());
+        sorted.sort(Comparator.comparingLong(record -> record.order));
+        world.entities = new EntityStore(sorted.size());
+        world.index = new EntityIndex(world.numRows, world.numCols);
+        List<Event> events = new ArrayList<>();
+        for (Record record : sorted) {
+            Point position = new Point(record.x, record.y);
+            if (record.x < 0 || record.x >= world.numCols || record.y < 0 || record.y >= world.numRows) {
+                throw new IllegalArgumentException(String.format("entity outside the world at %s", position));
+            }
+            if (world.isOccupied(position)) {
+                throw new IllegalArgumentException("position occupied");
+            }
+            Entity entity = new Entity(world.entities, record.kind, record.id, position, imageStore.getImageList(WorldSnapshot.imageKey(record.kind)),
+                    record.resourceLimit, record.resourceCount, record.actionPeriod, record.animationPeriod, record.health, record.healthLimit);
+            entity.store.imageIndex[entity.handle] = record.imageIndex;
+            world.addEntity(entity);
+            world.index.setOrder(entity, record.order);
+            if (!Double.isNaN(record.animationStart)) {
+                entity.store.animationClock[entity.handle] = scheduler;
+                entity.store.animationStart[entity.handle] = record.animationStart;
+            }
+
+            for (int i = 0; i < record.times.length; i++) {
+                Action action = record.eventKinds[i] == ActionKind.ANIMATION
+                        ? Animation.createAnimationAction(entity, record.repeatCounts[i])
+                        : Activity.createActivityAction(entity, world, imageStore);
+                Event event = new Event(action, record.times[i], entity);
+                event.sequence = record.sequences[i];
+                events.add(event);
+            }
+        }
+        world.index.setNextOrder(nextOrder);
+        world.startRandom();
+
+        // both queues break ties by insertion, so keep the saved order
+        events.sort(Comparator.comparingLong(event -> event.sequence));
+        scheduler.restore(events, currentTime);
+    }
+
+    private int startSegment(byte type) {
+        ensure(SEGMENT_HEADER);
+        int start = this.buffer.position();
+        this.buffer.put(type).putInt(0);
+        return start;
+    }
+
+    private void endSegment(int start) {
+        this.buffer.putInt(start + 1, this.buffer.position() - start - SEGMENT_HEADER);
+    }
+
+    /*
+       Writes the state body. Each entity written, and the removed list,
+       is cleared so the next delta starts from this checkpoint.
+     */
+    private void putState(WorldModel world, EventScheduler scheduler, boolean all) {
+        ensure(Double.BYTES + Long.BYTES + Integer.BYTES);
+        this.buffer.putDouble(scheduler.currentTime).putLong(world.index.getNextOrder());
+        int countAt = this.buffer.position();
+        this.buffer.putInt(0);
+
+        EntityStore store = world.entities;
+        int count = 0;
+        for (int row = 0; row < store.size; row++) {
+            if (all || store.changed[row]) {
+                putRecord(store.views[row], scheduler.pendingEvents.get(store.views[row]));
+                store.changed[row] = false;
+                count++;
+            }
+        }
+        this.buffer.putInt(countAt, count);
+
+        List<Long> removed = world.removedSinceCheckpoint;
+        ensure(Integer.BYTES + removed.size() * Long.BYTES);
+        this.buffer.putInt(removed.size());
+        for (long order : removed) {
+            this.buffer.putLong(order);
+        }
+        removed.clear();
+        this.lastEntities = count;
+    }
+
+    private void putRecord(Entity entity, Event pending) {
+        int events = 0;
+        for (Event event = pending; event != null; event = event.nextPending) {
+            events++;
+        }
+        byte[] id = entity.getId().getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xffff) {
+            throw new IllegalArgumentException("id too long for a checkpoint");
+        }
+        ensure(RECORD_BYTES + id.length + events * EVENT_BYTES);
+
+        EntityStore store = entity.store;
+        int handle = entity.handle;
+        this.buffer.putLong(store.order[handle]).put((byte) store.kind[handle].ordinal());
+        this.buffer.putInt(store.x[handle]).putInt(store.y[handle]);
+        this.buffer.putInt(store.resourceLimit[handle]).putInt(store.resourceCount[handle]);
+        this.buffer.putInt(store.health[handle]).putInt(store.healthLimit[handle]).putInt(store.imageIndex[handle]);
+        this.buffer.putDouble(store.actionPeriod[handle]).putDouble(store.animationPeriod[handle]);
+        this.buffer.putDouble(store.animationClock[handle] == null ? Double.NaN : store.animationStart[handle]);
+        this.buffer.putShort((short) id.length).put(id);
+
+        this.buffer.putInt(events);
+        for (Event event = pending; event != null; event = event.nextPending) {
+            ActionKind kind = event.action.getKind();
+            this.buffer.put((byte) kind.ordinal());
+            this.buffer.putInt(event.action instanceof Animation animation ? animation.repeatCount : 0);
+            this.buffer.putDouble(event.time).putLong(event.sequence);
+        }
+    }
+
+    private static Record getRecord(ByteBuffer body) {
+        Record record = new Record();
+        record.order = body.getLong();
+        record.kind = EntityKind.values()[body.get()];
+        record.x = body.getInt();
+        record.y = body.getInt();
+        record.resourceLimit = body.getInt();
+        record.resourceCount = body.getInt();
+        record.health = body.getInt();
+        record.healthLimit = body.getInt();
+        record.imageIndex = body.getInt();
+        record.actionPeriod = body.getDouble();
+        record.animationPeriod = body.getDouble();
+        record.animationStart = body.getDouble();
+        record.id = WorldSnapshot.getString(body);
+
+        int events = body.getInt();
+        record.eventKinds = new ActionKind[events];
+        record.repeatCounts = new int[events];
+        record.times = new double[events];
+        record.sequences = new long[events];
+        for (int i = 0; i < events; i++) {
+            record.eventKinds[i] = ActionKind.values()[body.get()];
+            record.repeatCounts[i] = body.getInt();
+            record.times[i] = body.getDouble();
+            record.sequences[i] = body.getLong();
+        }
+        return record;
+    }
+
+    private void ensure(int needed) {
+        if (this.buffer.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(this.buffer.capacity() * 2, this.buffer.position() + needed));
+            this.buffer = grown.put(this.buffer.flip());
+        }
+    }
+
+    private void flush(FileChannel channel, long position) throws IOException {
+        this.buffer.flip();
+        this.lastBytes = this.buffer.remaining();
+        while (this.buffer.hasRemaining()) {
+            position += channel.write(this.buffer, position);
+        }
+    }
+}
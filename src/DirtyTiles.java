@@ -0,0 +1,45 @@
+import java.util.Arrays;
+
+/**
+ * The cells of a viewport that must be redrawn on the next frame.
+ * WorldModel marks every cell whose occupant or background it changes;
+ * cells outside the viewport are ignored, so marking costs nothing when
+ * the change is off screen.
+ */
+public final class DirtyTiles {
+    private final Viewport viewport;
+    private final boolean[] dirty;
+    private boolean all;
+
+    public DirtyTiles(Viewport viewport) {
+        this.viewport = viewport;
+        this.dirty = new boolean[viewport.numRows * viewport.numCols];
+        this.all = true;
+    }
+
+    public void mark(long pos) {
+        if (this.viewport.contains(pos)) {
+            this.dirty[(Point.y(pos) - this.viewport.row) * this.viewport.numCols + Point.x(pos) - this.viewport.col] = true;
+        }
+    }
+
+    public void markAll() {
+        this.all = true;
+    }
+
+    public boolean isAllDirty() {
+        return this.all;
+    }
+
+    /*
+       cell is a viewport cell, row * numCols + col.
+     */
+    public boolean isDirty(int cell) {
+        return this.all || this.dirty[cell];
+    }
+
+    public void clear() {
+        Arrays.fill(this.dirty, false);
+        this.all = false;
+    }
+}
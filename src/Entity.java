@@ -7,107 +7,210 @@ import processing.core.PImage;
  * different kinds of entities that exist.
  */
 public final class Entity {
-    public EntityKind kind;
-    public String id;
-    public Point position;
-    public List<PImage> images;
-    public int imageIndex;
-    public int resourceLimit;
-    public int resourceCount;
-    public double actionPeriod;
-    public double animationPeriod;
-    public int health;
-    public int healthLimit;
+    private static final List<EntityKind> FAIRY_TARGETS = List.of(EntityKind.STUMP);
+    private static final List<EntityKind> DUDE_NOT_FULL_TARGETS = List.of(EntityKind.TREE, EntityKind.SAPLING);
+    private static final List<EntityKind> DUDE_FULL_TARGETS = List.of(EntityKind.HOUSE);
+    private static final double FRAME_EPSILON = 1e-9;
+
+    public EntityStore store;
+    public int handle;
+
+    /*
+       Creates the entity in a row of the given store, normally a scratch
+       store such as WorldModel.spawning, from which addEntity moves it into
+       the world's own. The view is invalidated once the entity is removed
+       from the world.
+     */
+    public Entity(EntityStore store, EntityKind kind, String id, Point position, List<PImage> images, int resourceLimit, int resourceCount, double actionPeriod, double animationPeriod, int health, int healthLimit) {
+        int row = store.allocate(this);
+        this.store.kind[row] = kind;
+        this.store.id[row] = id;
+        this.store.x[row] = position.x;
+        this.store.y[row] = position.y;
+        this.store.images[row] = images;
+        this.store.imageIndex[row] = 0;
+        this.store.resourceLimit[row] = resourceLimit;
+        this.store.resourceCount[row] = resourceCount;
+        this.store.actionPeriod[row] = actionPeriod;
+        this.store.animationPeriod[row] = animationPeriod;
+        this.store.health[row] = health;
+        this.store.healthLimit[row] = healthLimit;
+    }
+
+    public EntityKind getKind() {
+        return this.store.kind[this.handle];
+    }
+
+    public String getId() {
+        return this.store.id[this.handle];
+    }
+
+    public int getX() {
+        return this.store.x[this.handle];
+    }
+
+    public int getY() {
+        return this.store.y[this.handle];
+    }
+
+    public Point getPosition() {
+        return new Point(getX(), getY());
+    }
+
+    public long getPositionKey() {
+        return Point.pack(getX(), getY());
+    }
+
+    public void setPosition(Point position) {
+        this.store.x[this.handle] = position.x;
+        this.store.y[this.handle] = position.y;
+        markChanged();
+    }
+
+    public void setPosition(long position) {
+        this.store.x[this.handle] = Point.x(position);
+        this.store.y[this.handle] = Point.y(position);
+        markChanged();
+    }
+
+    public List<PImage> getImages() {
+        return this.store.images[this.handle];
+    }
+
+    public int getResourceLimit() {
+        return this.store.resourceLimit[this.handle];
+    }
+
+    public int getResourceCount() {
+        return this.store.resourceCount[this.handle];
+    }
+
+    public void setResourceCount(int resourceCount) {
+        this.store.resourceCount[this.handle] = resourceCount;
+        markChanged();
+    }
 
-    public Entity(EntityKind kind, String id, Point position, List<PImage> images, int resourceLimit, int resourceCount, double actionPeriod, double animationPeriod, int health, int healthLimit) {
-        this.kind = kind;
-        this.id = id;
-        this.position = position;
-        this.images = images;
-        this.imageIndex = 0;
-        this.resourceLimit = resourceLimit;
-        this.resourceCount = resourceCount;
-        this.actionPeriod = actionPeriod;
-        this.animationPeriod = animationPeriod;
-        this.health = health;
-        this.healthLimit = healthLimit;
+    public double getActionPeriod() {
+        return this.store.actionPeriod[this.handle];
     }
 
-    public static Entity createHouse(String id, Point position, List<PImage> images) {
-        return new Entity(EntityKind.HOUSE, id, position, images, 0, 0, 0, 0, 0, 0);
+    public int getHealth() {
+        return this.store.health[this.handle];
     }
 
-    public static Entity createObstacle(String id, Point position, double animationPeriod, List<PImage> images) {
-        return new Entity(EntityKind.OBSTACLE, id, position, images, 0, 0, 0, animationPeriod, 0, 0);
+    public void setHealth(int health) {
+        this.store.health[this.handle] = health;
+        markChanged();
     }
 
-    public static Entity createTree(String id, Point position, double actionPeriod, double animationPeriod, int health, List<PImage> images) {
-        return new Entity(EntityKind.TREE, id, position, images, 0, 0, actionPeriod, animationPeriod, health, 0);
+    public int getHealthLimit() {
+        return this.store.healthLimit[this.handle];
     }
 
-    public static Entity createStump(String id, Point position, List<PImage> images) {
-        return new Entity(EntityKind.STUMP, id, position, images, 0, 0, 0, 0, 0, 0);
+    public SplittableRandom getRandom() {
+        return this.store.random[this.handle];
+    }
+
+    public void setRandom(SplittableRandom random) {
+        this.store.random[this.handle] = random;
+    }
+
+    public static Entity createHouse(EntityStore store, String id, Point position, List<PImage> images) {
+        return new Entity(store, EntityKind.HOUSE, id, position, images, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static Entity createObstacle(EntityStore store, String id, Point position, double animationPeriod, List<PImage> images) {
+        return new Entity(store, EntityKind.OBSTACLE, id, position, images, 0, 0, 0, animationPeriod, 0, 0);
+    }
+
+    public static Entity createTree(EntityStore store, String id, Point position, double actionPeriod, double animationPeriod, int health, List<PImage> images) {
+        return new Entity(store, EntityKind.TREE, id, position, images, 0, 0, actionPeriod, animationPeriod, health, 0);
+    }
+
+    public static Entity createStump(EntityStore store, String id, Point position, List<PImage> images) {
+        return new Entity(store, EntityKind.STUMP, id, position, images, 0, 0, 0, 0, 0, 0);
     }
 
     // health starts at 0 and builds up until ready to convert to Tree
-    public static Entity createSapling(String id, Point position, List<PImage> images, int health) {
-        return new Entity(EntityKind.SAPLING, id, position, images, 0, 0, Functions.SAPLING_ACTION_ANIMATION_PERIOD, Functions.SAPLING_ACTION_ANIMATION_PERIOD, 0, Functions.SAPLING_HEALTH_LIMIT);
+    public static Entity createSapling(EntityStore store, String id, Point position, List<PImage> images, int health) {
+        return new Entity(store, EntityKind.SAPLING, id, position, images, 0, 0, Functions.SAPLING_ACTION_ANIMATION_PERIOD, Functions.SAPLING_ACTION_ANIMATION_PERIOD, 0, Functions.SAPLING_HEALTH_LIMIT);
     }
 
-    public static Entity createFairy(String id, Point position, double actionPeriod, double animationPeriod, List<PImage> images) {
-        return new Entity(EntityKind.FAIRY, id, position, images, 0, 0, actionPeriod, animationPeriod, 0, 0);
+    public static Entity createFairy(EntityStore store, String id, Point position, double actionPeriod, double animationPeriod, List<PImage> images) {
+        return new Entity(store, EntityKind.FAIRY, id, position, images, 0, 0, actionPeriod, animationPeriod, 0, 0);
     }
 
     // need resource count, though it always starts at 0
-    public static Entity createDudeNotFull(String id, Point position, double actionPeriod, double animationPeriod, int resourceLimit, List<PImage> images) {
-        return new Entity(EntityKind.DUDE_NOT_FULL, id, position, images, resourceLimit, 0, actionPeriod, animationPeriod, 0, 0);
+    public static Entity createDudeNotFull(EntityStore store, String id, Point position, double actionPeriod, double animationPeriod, int resourceLimit, List<PImage> images) {
+        return new Entity(store, EntityKind.DUDE_NOT_FULL, id, position, images, resourceLimit, 0, actionPeriod, animationPeriod, 0, 0);
     }
 
     // don't technically need resource count ... full
-    private static Entity createDudeFull(String id, Point position, double actionPeriod, double animationPeriod, int resourceLimit, List<PImage> images) {
-        return new Entity(EntityKind.DUDE_FULL, id, position, images, resourceLimit, 0, actionPeriod, animationPeriod, 0, 0);
+    private static Entity createDudeFull(EntityStore store, String id, Point position, double actionPeriod, double animationPeriod, int resourceLimit, List<PImage> images) {
+        return new Entity(store, EntityKind.DUDE_FULL, id, position, images, resourceLimit, 0, actionPeriod, animationPeriod, 0, 0);
     }
 
-    private static double getNumFromRange(double max, double min) {
-        Random rand = new Random();
-        return min + rand.nextDouble() * (max - min);
+    private double getNumFromRange(double max, double min) {
+        return min + getRandom().nextDouble() * (max - min);
     }
 
-    private static int getIntFromRange(int max, int min) {
-        Random rand = new Random();
-        return min + rand.nextInt(max-min);
+    private int getIntFromRange(int max, int min) {
+        return min + getRandom().nextInt(max-min);
     }
 
-    private static boolean adjacent(Point p1, Point p2) {
-        return (p1.x == p2.x && Math.abs(p1.y - p2.y) == 1) || (p1.y == p2.y && Math.abs(p1.x - p2.x) == 1);
+    private boolean adjacent(Entity other) {
+        int x1 = getX(), y1 = getY(), x2 = other.getX(), y2 = other.getY();
+        return (x1 == x2 && Math.abs(y1 - y2) == 1) || (y1 == y2 && Math.abs(x1 - x2) == 1);
     }
 
-    private Point nextPositionFairy(WorldModel world, Point destPos) {
-        int horiz = Integer.signum(destPos.x - this.position.x);
-        Point newPos = new Point(this.position.x + horiz, this.position.y);
+    private long nextPositionFairy(WorldModel world, long destPos) {
+        FlowField field = world.getFlowField(FAIRY_TARGETS, false);
+        if (field != null) {
+            return field.nextStep(getPositionKey());
+        }
+        Navigator navigator = world.getNavigator(false);
+        if (navigator != null) {
+            return navigator.nextStep(this, getPositionKey(), destPos);
+        }
+
+        int x = getX();
+        int y = getY();
+        int horiz = Integer.signum(Point.x(destPos) - x);
+        long newPos = Point.pack(x + horiz, y);
 
         if (horiz == 0 || world.isOccupied(newPos)) {
-            int vert = Integer.signum(destPos.y - this.position.y);
-            newPos = new Point(this.position.x, this.position.y + vert);
+            int vert = Integer.signum(Point.y(destPos) - y);
+            newPos = Point.pack(x, y + vert);
 
             if (vert == 0 || world.isOccupied(newPos)) {
-                newPos = this.position;
+                newPos = Point.pack(x, y);
             }
         }
 
         return newPos;
     }
 
-    private Point nextPositionDude(WorldModel world, Point destPos) {
-        int horiz = Integer.signum(destPos.x - this.position.x);
-        Point newPos = new Point(this.position.x + horiz, this.position.y);
+    private long nextPositionDude(WorldModel world, long destPos, List<EntityKind> targets) {
+        FlowField field = world.getFlowField(targets, true);
+        if (field != null) {
+            return field.nextStep(getPositionKey());
+        }
+        Navigator navigator = world.getNavigator(true);
+        if (navigator != null) {
+            return navigator.nextStep(this, getPositionKey(), destPos);
+        }
+
+        int x = getX();
+        int y = getY();
+        int horiz = Integer.signum(Point.x(destPos) - x);
+        long newPos = Point.pack(x + horiz, y);
 
-        if (horiz == 0 || world.isOccupied(newPos) && world.getOccupancyCell(newPos).kind != EntityKind.STUMP) {
-            int vert = Integer.signum(destPos.y - this.position.y);
-            newPos = new Point(this.position.x, this.position.y + vert);
+        if (horiz == 0 || world.isOccupied(newPos) && world.getOccupancyCell(newPos).getKind() != EntityKind.STUMP) {
+            int vert = Integer.signum(Point.y(destPos) - y);
+            newPos = Point.pack(x, y + vert);
 
-            if (vert == 0 || world.isOccupied(newPos) && world.getOccupancyCell(newPos).kind != EntityKind.STUMP) {
-                newPos = this.position;
+            if (vert == 0 || world.isOccupied(newPos) && world.getOccupancyCell(newPos).getKind() != EntityKind.STUMP) {
+                newPos = Point.pack(x, y);
             }
         }
 
@@ -115,13 +218,13 @@ public final class Entity {
     }
 
     private boolean moveToFairy(WorldModel world, Entity target, EventScheduler scheduler) {
-        if (adjacent(this.position, target.position)) {
+        if (adjacent(target)) {
             world.removeEntity(scheduler, target);
             return true;
         } else {
-            Point nextPos = nextPositionFairy(world, target.position);
+            long nextPos = nextPositionFairy(world, target.getPositionKey());
 
-            if (!this.position.equals(nextPos)) {
+            if (getPositionKey() != nextPos) {
                 world.moveEntity(scheduler, this, nextPos);
             }
             return false;
@@ -129,14 +232,14 @@ public final class Entity {
     }
 
     private boolean moveToNotFull(WorldModel world, Entity target, EventScheduler scheduler) {
-        if (adjacent(this.position, target.position)) {
-            this.resourceCount += 1;
-            target.health--;
+        if (adjacent(target)) {
+            setResourceCount(getResourceCount() + 1);
+            target.setHealth(target.getHealth() - 1);
             return true;
         } else {
-            Point nextPos = nextPositionDude(world, target.position);
+            long nextPos = nextPositionDude(world, target.getPositionKey(), DUDE_NOT_FULL_TARGETS);
 
-            if (!this.position.equals(nextPos)) {
+            if (getPositionKey() != nextPos) {
                 world.moveEntity(scheduler, this, nextPos);
             }
             return false;
@@ -144,12 +247,12 @@ public final class Entity {
     }
 
     private boolean moveToFull(WorldModel world, Entity target, EventScheduler scheduler) {
-        if (adjacent(this.position, target.position)) {
+        if (adjacent(target)) {
             return true;
         } else {
-            Point nextPos = nextPositionDude(world, target.position);
+            long nextPos = nextPositionDude(world, target.getPositionKey(), DUDE_FULL_TARGETS);
 
-            if (!this.position.equals(nextPos)) {
+            if (getPositionKey() != nextPos) {
                 world.moveEntity(scheduler, this, nextPos);
             }
             return false;
@@ -157,7 +260,7 @@ public final class Entity {
     }
 
     private void transformFull(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        Entity dude = createDudeNotFull(this.id, this.position, this.actionPeriod, this.animationPeriod, this.resourceLimit, this.images);
+        Entity dude = createDudeNotFull(world.spawning, getId(), getPosition(), getActionPeriod(), getAnimationPeriod(), getResourceLimit(), getImages());
 
         world.removeEntity(scheduler, this);
 
@@ -166,9 +269,9 @@ public final class Entity {
     }
 
     private boolean transformPlant(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        if (this.kind == EntityKind.TREE) {
+        if (getKind() == EntityKind.TREE) {
             return transformTree(world, scheduler, imageStore);
-        } else if (this.kind == EntityKind.SAPLING) {
+        } else if (getKind() == EntityKind.SAPLING) {
             return transformSapling(world, scheduler, imageStore);
         } else {
             throw new UnsupportedOperationException(String.format("transformPlant not supported for %s", this));
@@ -176,8 +279,8 @@ public final class Entity {
     }
 
     private boolean transformTree(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        if (this.health <= 0) {
-            Entity stump = createStump(Functions.STUMP_KEY + "_" + this.id, this.position, imageStore.getImageList(Functions.STUMP_KEY));
+        if (getHealth() <= 0) {
+            Entity stump = createStump(world.spawning, Functions.STUMP_KEY + "_" + getId(), getPosition(), imageStore.getImageList(Functions.STUMP_KEY));
 
             world.removeEntity(scheduler, this);
 
@@ -190,16 +293,16 @@ public final class Entity {
     }
 
     private boolean transformSapling(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        if (this.health <= 0) {
-            Entity stump = createStump(Functions.STUMP_KEY + "_" + this.id, this.position, imageStore.getImageList(Functions.STUMP_KEY));
+        if (getHealth() <= 0) {
+            Entity stump = createStump(world.spawning, Functions.STUMP_KEY + "_" + getId(), getPosition(), imageStore.getImageList(Functions.STUMP_KEY));
 
             world.removeEntity(scheduler, this);
 
             world.addEntity(stump);
 
             return true;
-        } else if (this.health >= this.healthLimit) {
-            Entity tree = createTree(Functions.TREE_KEY + "_" + this.id, this.position, getNumFromRange(Functions.TREE_ACTION_MAX, Functions.TREE_ACTION_MIN), getNumFromRange(Functions.TREE_ANIMATION_MAX, Functions.TREE_ANIMATION_MIN), getIntFromRange(Functions.TREE_HEALTH_MAX, Functions.TREE_HEALTH_MIN), imageStore.getImageList(Functions.TREE_KEY));
+        } else if (getHealth() >= getHealthLimit()) {
+            Entity tree = createTree(world.spawning, Functions.TREE_KEY + "_" + getId(), getPosition(), getNumFromRange(Functions.TREE_ACTION_MAX, Functions.TREE_ACTION_MIN), getNumFromRange(Functions.TREE_ANIMATION_MAX, Functions.TREE_ANIMATION_MIN), getIntFromRange(Functions.TREE_HEALTH_MAX, Functions.TREE_HEALTH_MIN), imageStore.getImageList(Functions.TREE_KEY));
 
             world.removeEntity(scheduler, this);
 
@@ -213,8 +316,8 @@ public final class Entity {
     }
 
     private boolean transformNotFull(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        if (this.resourceCount >= this.resourceLimit) {
-            Entity dude = createDudeFull(this.id, this.position, this.actionPeriod, this.animationPeriod, this.resourceLimit, this.images);
+        if (getResourceCount() >= getResourceLimit()) {
+            Entity dude = createDudeFull(world.spawning, getId(), getPosition(), getActionPeriod(), getAnimationPeriod(), getResourceLimit(), getImages());
 
             world.removeEntity(scheduler, this);
             scheduler.unscheduleAllEvents(this);
@@ -229,27 +332,55 @@ public final class Entity {
     }
 
     public double getAnimationPeriod() {
-        switch (this.kind) {
+        switch (getKind()) {
             case DUDE_FULL:
             case DUDE_NOT_FULL:
             case OBSTACLE:
             case FAIRY:
             case SAPLING:
             case TREE:
-                return this.animationPeriod;
+                return this.store.animationPeriod[this.handle];
             default:
-                throw new UnsupportedOperationException(String.format("getAnimationPeriod not supported for %s", this.kind));
+                throw new UnsupportedOperationException(String.format("getAnimationPeriod not supported for %s", getKind()));
         }
     }
 
     public void nextImage() {
-        this.imageIndex = this.imageIndex + 1;
+        this.store.imageIndex[this.handle]++;
+        markChanged();
+    }
+
+    /*
+       Switches this entity to analytic animation: instead of an Animation
+       event per frame, the frame is derived from the clock when read.
+     */
+    public void startAnimation(EventScheduler clock) {
+        this.store.animationClock[this.handle] = clock;
+        this.store.animationStart[this.handle] = clock.currentTime;
+        markChanged();
+    }
+
+    /*
+       Flags the entity for the next delta checkpoint.
+     */
+    public void markChanged() {
+        this.store.changed[this.handle] = true;
+    }
+
+    public int getImageIndex() {
+        int imageIndex = this.store.imageIndex[this.handle];
+        EventScheduler clock = this.store.animationClock[this.handle];
+        if (clock == null) {
+            return imageIndex;
+        }
+        double frames = (clock.currentTime - this.store.animationStart[this.handle]) / this.store.animationPeriod[this.handle];
+        return imageIndex + (int) Math.floor(frames + FRAME_EPSILON);
     }
 
     public void executeSaplingActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        this.health++;
+        setHealth(getHealth() + 1);
         if (!transformPlant(world, scheduler, imageStore)) {
-            scheduler.scheduleEvent(this, Action.createActivityAction(this, world, imageStore), this.actionPeriod);
+            scheduler.repeatCurrentEvent(getActionPeriod());
         }
     }
 
@@ -257,43 +388,44 @@ public final class Entity {
 
         if (!transformPlant(world, scheduler, imageStore)) {
 
-            scheduler.scheduleEvent(this, Action.createActivityAction(this, world, imageStore), this.actionPeriod);
+            scheduler.repeatCurrentEvent(getActionPeriod());
         }
     }
 
     public void executeFairyActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> fairyTarget = world.findNearest(this.position, new ArrayList<>(List.of(EntityKind.STUMP)));
+        Entity fairyTarget = world.findNearestCached(this, FAIRY_TARGETS);
 
-        if (fairyTarget.isPresent()) {
-            Point tgtPos = fairyTarget.get().position;
+        if (fairyTarget != null) {
+            long tgtPos = fairyTarget.getPositionKey();
+            String tgtId = fairyTarget.getId();
 
-            if (moveToFairy(world, fairyTarget.get(), scheduler)) {
+            if (moveToFairy(world, fairyTarget, scheduler)) {
 
-                Entity sapling = createSapling(Functions.SAPLING_KEY + "_" + fairyTarget.get().id, tgtPos, imageStore.getImageList(Functions.SAPLING_KEY), 0);
+                Entity sapling = createSapling(world.spawning, Functions.SAPLING_KEY + "_" + tgtId, Point.unpack(tgtPos), imageStore.getImageList(Functions.SAPLING_KEY), 0);
 
                 world.addEntity(sapling);
                 scheduler.scheduleActions(sapling, world, imageStore);
             }
         }
 
-        scheduler.scheduleEvent(this, Action.createActivityAction(this, world, imageStore), this.actionPeriod);
+        scheduler.repeatCurrentEvent(getActionPeriod());
     }
 
     public void executeDudeNotFullActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> target = world.findNearest(this.position, new ArrayList<>(Arrays.asList(EntityKind.TREE, EntityKind.SAPLING)));
+        Entity target = world.findNearestCached(this, DUDE_NOT_FULL_TARGETS);
 
-        if (target.isEmpty() || !moveToNotFull(world, target.get(), scheduler) || !transformNotFull(world, scheduler, imageStore)) {
-            scheduler.scheduleEvent(this, Action.createActivityAction(this, world, imageStore), this.actionPeriod);
+        if (target == null || !moveToNotFull(world, target, scheduler) || !transformNotFull(world, scheduler, imageStore)) {
+            scheduler.repeatCurrentEvent(getActionPeriod());
         }
     }
 
     public void executeDudeFullActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> fullTarget = world.findNearest(this.position, new ArrayList<>(List.of(EntityKind.HOUSE)));
+        Entity fullTarget = world.findNearestCached(this, DUDE_FULL_TARGETS);
 
-        if (fullTarget.isPresent() && moveToFull(world, fullTarget.get(), scheduler)) {
+        if (fullTarget != null && moveToFull(world, fullTarget, scheduler)) {
             transformFull(world, scheduler, imageStore);
         } else {
-            scheduler.scheduleEvent(this, Action.createActivityAction(this, world, imageStore), this.actionPeriod);
+            scheduler.repeatCurrentEvent(getActionPeriod());
         }
     }
 
@@ -301,7 +433,7 @@ public final class Entity {
      * Helper method for testing. Preserve this functionality while refactoring.
      */
     public String log(){
-        return this.id.isEmpty() ? null :
-                String.format("%s %d %d %d", this.id, this.position.x, this.position.y, this.imageIndex);
+        return getId().isEmpty() ? null :
+                String.format("%s %d %d %d", getId(), getX(), getY(), this.getImageIndex());
     }
 }
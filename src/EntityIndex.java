@@ -0,0 +1,211 @@
+import java.util.*;
+
+/**
+ * A uniform bucket grid over the world, one per EntityKind, used to
+ * answer nearest-entity queries without scanning every entity.
+ * Ties in distance are broken by the order of the requested kinds, then
+ * by the order stamp each entity gets when it is added to the index,
+ * kept in the store's order column. Iteration over the store is no
+ * guide, as removals move rows around.
+ */
+public final class EntityIndex {
+    public static final int BUCKET_SIZE = 8;
+    // sized up front so that an entity walking into an empty bucket does not allocate
+    public static final int BUCKET_CAPACITY = 4;
+
+    private final int numRows;
+    private final int numCols;
+    private final int bucketRows;
+    private final int bucketCols;
+    private final Map<EntityKind, List<Entity>[]> grids;
+    private final Map<EntityKind, Integer> counts;
+    private long nextOrder;
+
+    public EntityIndex(int numRows, int numCols) {
+        this.numRows = Math.max(numRows, 0);
+        this.numCols = Math.max(numCols, 0);
+        this.bucketRows = (this.numRows + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.bucketCols = (this.numCols + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.grids = new EnumMap<>(EntityKind.class);
+        this.counts = new EnumMap<>(EntityKind.class);
+        this.nextOrder = 0;
+    }
+
+    public void add(Entity entity) {
+        bucket(entity.getKind(), entity.getX(), entity.getY()).add(entity);
+        this.counts.merge(entity.getKind(), 1, Integer::sum);
+        entity.store.order[entity.handle] = this.nextOrder++;
+    }
+
+    /*
+       Puts a restored entity back at its saved place in the tie-break
+       order, after it has been added.
+     */
+    public void setOrder(Entity entity, long order) {
+        entity.store.order[entity.handle] = order;
+        this.nextOrder = Math.max(this.nextOrder, order + 1);
+    }
+
+    public long getNextOrder() {
+        return this.nextOrder;
+    }
+
+    public void setNextOrder(long nextOrder) {
+        this.nextOrder = nextOrder;
+    }
+
+    public void remove(Entity entity) {
+        if (bucket(entity.getKind(), entity.getX(), entity.getY()).remove(entity)) {
+            this.counts.merge(entity.getKind(), -1, Integer::sum);
+        }
+    }
+
+    /*
+       Relocates an entity without changing its place in the tie-break
+       order. Must be called before the entity's position is updated.
+     */
+    public void move(Entity entity, long oldPos, long newPos) {
+        int oldBucket = bucketIndex(Point.x(oldPos), Point.y(oldPos));
+        int newBucket = bucketIndex(Point.x(newPos), Point.y(newPos));
+        if (oldBucket != newBucket) {
+            List<Entity>[] grid = grid(entity.getKind());
+            if (grid[oldBucket].remove(entity)) {
+                grid[newBucket].add(entity);
+            }
+        }
+    }
+
+    public Optional<Entity> findNearest(int x, int y, List<EntityKind> kinds) {
+        return Optional.ofNullable(search(x, y, kinds).entity);
+    }
+
+    public Nearest search(int x, int y, List<EntityKind> kinds) {
+        List<List<Entity>[]> searched = new ArrayList<>(kinds.size());
+        for (EntityKind kind : kinds) {
+            searched.add(this.counts.getOrDefault(kind, 0) > 0 ? grid(kind) : null);
+        }
+
+        Nearest nearest = new Nearest(x, y);
+        if (y < 0 || y >= this.numRows || x < 0 || x >= this.numCols) {
+            for (int bucket = 0; bucket < this.bucketRows * this.bucketCols; bucket++) {
+                nearest.visit(searched, bucket);
+            }
+            return nearest;
+        }
+
+        int centerRow = y / BUCKET_SIZE;
+        int centerCol = x / BUCKET_SIZE;
+        int maxRing = Math.max(Math.max(centerRow, this.bucketRows - 1 - centerRow), Math.max(centerCol, this.bucketCols - 1 - centerCol));
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (nearest.entity != null && ring > 0) {
+                // every cell in this ring is at least this many cells away on one axis
+                int minDelta = (ring - 1) * BUCKET_SIZE + 1;
+                if (minDelta * minDelta > nearest.distance) {
+                    nearest.frontier = minDelta;
+                    break;
+                }
+            }
+
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= this.bucketRows) {
+                    continue;
+                }
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int col = centerCol - ring; col <= centerCol + ring; col += Math.max(step, 1)) {
+                    if (col >= 0 && col < this.bucketCols) {
+                        nearest.visit(searched, row * this.bucketCols + col);
+                    }
+                }
+            }
+        }
+
+        return nearest;
+    }
+
+    private int bucketIndex(int x, int y) {
+        return (y / BUCKET_SIZE) * this.bucketCols + (x / BUCKET_SIZE);
+    }
+
+    private List<Entity> bucket(EntityKind kind, int x, int y) {
+        return grid(kind)[bucketIndex(x, y)];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Entity>[] grid(EntityKind kind) {
+        // looked up before creating, as a capturing lambda would allocate on every move
+        List<Entity>[] grid = this.grids.get(kind);
+        if (grid == null) {
+            grid = new List[this.bucketRows * this.bucketCols];
+            for (int i = 0; i < grid.length; i++) {
+                grid[i] = new ArrayList<>(BUCKET_CAPACITY);
+            }
+            this.grids.put(kind, grid);
+        }
+        return grid;
+    }
+
+    /**
+     * The result of a nearest-entity search: the entity found, its squared
+     * distance, and enough about the rest to bound how far away every
+     * other entity of the searched kinds is.
+     */
+    public static final class Nearest {
+        private final int x;
+        private final int y;
+        public Entity entity;
+        public int distance;
+        // squared distance of the closest visited entity other than the best
+        public int secondDistance;
+        // minimum distance of every bucket the search did not visit
+        public int frontier;
+        private int kindRank;
+        private long order;
+
+        private Nearest(int x, int y) {
+            this.x = x;
+            this.y = y;
+            this.secondDistance = Integer.MAX_VALUE;
+            this.frontier = Integer.MAX_VALUE;
+        }
+
+        /*
+           No entity of the searched kinds other than the one found is
+           closer than this.
+         */
+        public double bound() {
+            return Math.min(Math.sqrt(this.secondDistance), this.frontier);
+        }
+
+        private void visit(List<List<Entity>[]> searched, int bucket) {
+            for (int rank = 0; rank < searched.size(); rank++) {
+                List<Entity>[] grid = searched.get(rank);
+                if (grid == null) {
+                    continue;
+                }
+                for (Entity other : grid[bucket]) {
+                    int deltaX = other.getX() - this.x;
+                    int deltaY = other.getY() - this.y;
+                    int otherDistance = deltaX * deltaX + deltaY * deltaY;
+
+                    if (this.entity == null || otherDistance < this.distance || otherDistance == this.distance && precedes(rank, other)) {
+                        if (this.entity != null) {
+                            this.secondDistance = Math.min(this.secondDistance, this.distance);
+                        }
+                        this.entity = other;
+                        this.distance = otherDistance;
+                        this.kindRank = rank;
+                        this.order = other.store.order[other.handle];
+                    } else {
+                        this.secondDistance = Math.min(this.secondDistance, otherDistance);
+                    }
+                }
+            }
+        }
+
+        private boolean precedes(int rank, Entity other) {
+            return rank < this.kindRank || rank == this.kindRank && other.store.order[other.handle] < this.order;
+        }
+    }
+}
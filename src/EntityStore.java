@@ -0,0 +1,205 @@
+import java.util.*;
+
+import processing.core.PImage;
+
+/**
+ * Dense struct-of-arrays storage for entities. Each entity's data lives
+ * in one row of primitive columns addressed by an int handle, and the
+ * Entity object is only a view holding its store and handle.
+ *
+ * Rows are kept packed: removing a row moves the last row into its place
+ * and re-points that row's view at the new handle. Iteration therefore
+ * walks the columns in memory order.
+ *
+ * Entities are created in a scratch store, such as WorldModel.spawning
+ * or a parser block's, and adopted into the world's store only when they
+ * are added to the world, so an entity that is never added leaves no
+ * trace there. A released view has no row left: its store is null and
+ * its handle -1.
+ */
+public final class EntityStore extends AbstractCollection<Entity> {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    public int size;
+    public Entity[] views;
+    public EntityKind[] kind;
+    public String[] id;
+    public int[] x;
+    public int[] y;
+    public List<PImage>[] images;
+    public int[] imageIndex;
+    public int[] resourceLimit;
+    public int[] resourceCount;
+    public double[] actionPeriod;
+    public double[] animationPeriod;
+    public int[] health;
+    public int[] healthLimit;
+    public long[] order;
+    public double[] animationStart;
+    public EventScheduler[] animationClock;
+    public SplittableRandom[] random;
+    // set when a row changes, cleared by each checkpoint
+    public boolean[] changed;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EntityStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.size = 0;
+        this.views = new Entity[capacity];
+        this.kind = new EntityKind[capacity];
+        this.id = new String[capacity];
+        this.x = new int[capacity];
+        this.y = new int[capacity];
+        this.images = new List[capacity];
+        this.imageIndex = new int[capacity];
+        this.resourceLimit = new int[capacity];
+        this.resourceCount = new int[capacity];
+        this.actionPeriod = new double[capacity];
+        this.animationPeriod = new double[capacity];
+        this.health = new int[capacity];
+        this.healthLimit = new int[capacity];
+        this.order = new long[capacity];
+        this.animationStart = new double[capacity];
+        this.animationClock = new EventScheduler[capacity];
+        this.random = new SplittableRandom[capacity];
+        this.changed = new boolean[capacity];
+    }
+
+    public EntityStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public Entity get(int handle) {
+        return this.views[handle];
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.views.length) {
+            int length = Math.max(capacity, this.views.length * 2);
+            this.views = Arrays.copyOf(this.views, length);
+            this.kind = Arrays.copyOf(this.kind, length);
+            this.id = Arrays.copyOf(this.id, length);
+            this.x = Arrays.copyOf(this.x, length);
+            this.y = Arrays.copyOf(this.y, length);
+            this.images = Arrays.copyOf(this.images, length);
+            this.imageIndex = Arrays.copyOf(this.imageIndex, length);
+            this.resourceLimit = Arrays.copyOf(this.resourceLimit, length);
+            this.resourceCount = Arrays.copyOf(this.resourceCount, length);
+            this.actionPeriod = Arrays.copyOf(this.actionPeriod, length);
+            this.animationPeriod = Arrays.copyOf(this.animationPeriod, length);
+            this.health = Arrays.copyOf(this.health, length);
+            this.healthLimit = Arrays.copyOf(this.healthLimit, length);
+            this.order = Arrays.copyOf(this.order, length);
+            this.animationStart = Arrays.copyOf(this.animationStart, length);
+            this.animationClock = Arrays.copyOf(this.animationClock, length);
+            this.random = Arrays.copyOf(this.random, length);
+            this.changed = Arrays.copyOf(this.changed, length);
+        }
+    }
+
+    /*
+       Appends an empty row for the given view and returns its handle.
+     */
+    public int allocate(Entity view) {
+        ensureCapacity(this.size + 1);
+        int handle = this.size++;
+        this.views[handle] = view;
+        this.changed[handle] = true;
+        view.store = this;
+        view.handle = handle;
+        return handle;
+    }
+
+    /*
+       Moves an entity's row from whatever store currently holds it into
+       this one. The view object is kept, so references to it stay valid.
+     */
+    public void adopt(Entity view) {
+        EntityStore from = view.store;
+        int source = view.handle;
+        if (from == this) {
+            return;
+        }
+        if (from == null) {
+            throw new IllegalArgumentException("entity was released");
+        }
+        int handle = allocate(view);
+        copyRow(from, source, this, handle);
+        from.removeRow(source);
+    }
+
+    /*
+       Drops an entity's row and invalidates its view, which must not be
+       used again once the entity has left the world.
+     */
+    public void release(Entity view) {
+        if (view.store == this) {
+            removeRow(view.handle);
+            view.store = null;
+            view.handle = -1;
+        }
+    }
+
+    private void removeRow(int handle) {
+        int last = --this.size;
+        if (handle != last) {
+            copyRow(this, last, this, handle);
+            this.views[handle] = this.views[last];
+            this.views[handle].handle = handle;
+        }
+        this.views[last] = null;
+        this.id[last] = null;
+        this.images[last] = null;
+        this.animationClock[last] = null;
+        this.random[last] = null;
+    }
+
+    private static void copyRow(EntityStore from, int source, EntityStore to, int target) {
+        to.kind[target] = from.kind[source];
+        to.id[target] = from.id[source];
+        to.x[target] = from.x[source];
+        to.y[target] = from.y[source];
+        to.images[target] = from.images[source];
+        to.imageIndex[target] = from.imageIndex[source];
+        to.resourceLimit[target] = from.resourceLimit[source];
+        to.resourceCount[target] = from.resourceCount[source];
+        to.actionPeriod[target] = from.actionPeriod[source];
+        to.animationPeriod[target] = from.animationPeriod[source];
+        to.health[target] = from.health[source];
+        to.healthLimit[target] = from.healthLimit[source];
+        to.order[target] = from.order[source];
+        to.animationStart[target] = from.animationStart[source];
+        to.animationClock[target] = from.animationClock[source];
+        to.random[target] = from.random[source];
+        to.changed[target] = from.changed[source];
+    }
+
+    public boolean contains(Object view) {
+        return view instanceof Entity entity && entity.store == this;
+    }
+
+    public Iterator<Entity> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return this.next < size;
+            }
+
+            public Entity next() {
+                if (this.next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return views[this.next++];
+            }
+        };
+    }
+}
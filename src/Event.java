@@ -6,10 +6,15 @@ public final class Event {
     public Action action;
     public double time;
     public Entity entity;
+    public boolean cancelled;
+    public long tick;
+    public long sequence;
+    public Event nextPending;
 
     public Event(Action action, double time, Entity entity) {
         this.action = action;
         this.time = time;
         this.entity = entity;
+        this.cancelled = false;
     }
 }
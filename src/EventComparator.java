@@ -2,6 +2,7 @@ import java.util.Comparator;
 
 public final class EventComparator implements Comparator<Event> {
     public int compare(Event lft, Event rht) {
-        return (int) (1000 * (lft.time - rht.time));
+        int byTime = Double.compare(lft.time, rht.time);
+        return byTime != 0 ? byTime : Long.compare(lft.sequence, rht.sequence);
     }
 }
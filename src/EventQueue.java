@@ -0,0 +1,30 @@
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * The ordered store of scheduled events behind an EventScheduler.
+ */
+public interface EventQueue {
+
+    void add(Event event);
+
+    /*
+       Adds a batch of events, such as a restored checkpoint.
+     */
+    default void addAll(Collection<Event> events) {
+        for (Event event : events) {
+            add(event);
+        }
+    }
+
+    Event peek();
+
+    Event poll();
+
+    boolean isEmpty();
+
+    int size();
+
+    boolean removeIf(Predicate<Event> filter);
+
+}
@@ -2,92 +2,219 @@ import java.util.*;
 
 /**
  * Keeps track of events that have been scheduled.
+ * Unscheduled events are not removed from the queue right away; they are
+ * marked cancelled and skipped when polled, and the queue is compacted
+ * once cancelled entries outnumber live ones.
+ * Recurring actions reuse their Event: the scheduler keeps the event it
+ * is currently executing so the action can push it back with a new time.
+ * Each entity's pending events form an intrusive list through
+ * Event.nextPending, so steady-state rescheduling allocates nothing.
  */
 public final class EventScheduler {
-    public PriorityQueue<Event> eventQueue;
-    public Map<Entity, List<Event>> pendingEvents;
+    public static final int COMPACT_MIN_DEAD = 1024;
+
+    public EventQueue eventQueue;
+    public Map<Entity, Event> pendingEvents;
+    public Event currentEvent;
     public double currentTime;
+    public int liveEvents;
+    public int deadEvents;
+    public boolean analyticAnimation;
+    public long[] executedEvents;
+    public int peakQueueDepth;
+    // while scheduling in bulk, new events collect here instead of the queue
+    private List<Event> batch;
 
     public EventScheduler() {
-        this.eventQueue = new PriorityQueue<>(new EventComparator());
+        this(new HeapEventQueue());
+    }
+
+    public EventScheduler(EventQueue eventQueue) {
+        this.eventQueue = eventQueue;
         this.pendingEvents = new HashMap<>();
         this.currentTime = 0;
+        this.liveEvents = 0;
+        this.deadEvents = 0;
+        this.analyticAnimation = false;
+        this.executedEvents = new long[ActionKind.values().length];
+        this.peakQueueDepth = 0;
     }
 
     private void removePendingEvent(Event event) {
-        List<Event> pending = this.pendingEvents.get(event.entity);
-
-        if (pending != null) {
-            pending.remove(event);
+        Event head = this.pendingEvents.get(event.entity);
+
+        if (head == event) {
+            // kept even if null while the event runs, so a reschedule does not reallocate it
+            this.pendingEvents.put(event.entity, event.nextPending);
+        } else if (head != null) {
+            Event prev = head;
+            while (prev.nextPending != null && prev.nextPending != event) {
+                prev = prev.nextPending;
+            }
+            if (prev.nextPending == event) {
+                prev.nextPending = event.nextPending;
+            }
         }
+        event.nextPending = null;
+    }
+
+    private void addPendingEvent(Event event) {
+        event.nextPending = this.pendingEvents.get(event.entity);
+        this.pendingEvents.put(event.entity, event);
     }
 
     public void unscheduleAllEvents(Entity entity) {
-        List<Event> pending = this.pendingEvents.remove(entity);
+        Event pending = this.pendingEvents.remove(entity);
+
+        while (pending != null) {
+            Event next = pending.nextPending;
+            pending.cancelled = true;
+            pending.nextPending = null;
+            this.liveEvents--;
+            this.deadEvents++;
+            pending = next;
+        }
 
-        if (pending != null) {
-            for (Event event : pending) {
-                this.eventQueue.remove(event);
-            }
+        if (this.deadEvents >= COMPACT_MIN_DEAD && this.deadEvents > this.liveEvents) {
+            compact();
         }
     }
 
-    public void scheduleEvent(Entity entity, Action action, double afterPeriod) {
-        double time = this.currentTime + afterPeriod;
+    /*
+       Drops every cancelled event from the queue in a single pass.
+     */
+    public void compact() {
+        this.eventQueue.removeIf(event -> event.cancelled);
+        this.deadEvents = 0;
+    }
 
-        Event event = new Event(action, time, entity);
+    public void scheduleEvent(Entity entity, Action action, double afterPeriod) {
+        rescheduleEvent(new Event(action, 0, entity), afterPeriod);
+    }
 
-        this.eventQueue.add(event);
+    /*
+       Pushes an event that is not currently queued back onto the queue,
+       afterPeriod from now. Used to repeat an action without allocating.
+     */
+    public void rescheduleEvent(Event event, double afterPeriod) {
+        event.time = this.currentTime + afterPeriod;
+        event.cancelled = false;
+
+        if (this.batch != null) {
+            this.batch.add(event);
+        } else {
+            this.eventQueue.add(event);
+        }
+        this.liveEvents++;
+        event.entity.markChanged();
+        this.peakQueueDepth = Math.max(this.peakQueueDepth, this.liveEvents + this.deadEvents);
 
         // update list of pending events for the given entity
-        List<Event> pending = this.pendingEvents.getOrDefault(entity, new LinkedList<>());
-        pending.add(event);
-        this.pendingEvents.put(entity, pending);
+        addPendingEvent(event);
+    }
+
+    public void repeatCurrentEvent(double afterPeriod) {
+        rescheduleEvent(this.currentEvent, afterPeriod);
+    }
+
+    private void scheduleAnimation(Entity entity) {
+        if (this.analyticAnimation) {
+            entity.startAnimation(this);
+        } else {
+            scheduleEvent(entity, Animation.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+        }
     }
 
     public void scheduleActions(Entity entity, WorldModel world, ImageStore imageStore) {
-        switch (entity.kind) {
+        switch (entity.getKind()) {
             case DUDE_FULL:
-                scheduleEvent(entity, new Activity(entity, world, imageStore), entity.actionPeriod);
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleEvent(entity, Activity.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
+                scheduleAnimation(entity);
                 break;
 
             case DUDE_NOT_FULL:
-                scheduleEvent(entity, new Activity(entity, world, imageStore), entity.actionPeriod);
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleEvent(entity, Activity.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
+                scheduleAnimation(entity);
                 break;
 
             case OBSTACLE:
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleAnimation(entity);
                 break;
 
             case FAIRY:
-                scheduleEvent(entity, new Activity(entity, world, imageStore), entity.actionPeriod);
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleEvent(entity, Activity.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
+                scheduleAnimation(entity);
                 break;
 
             case SAPLING:
-                scheduleEvent(entity, new Activity(entity, world, imageStore), entity.actionPeriod);
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleEvent(entity, Activity.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
+                scheduleAnimation(entity);
                 break;
 
             case TREE:
-                scheduleEvent(entity, new Activity(entity, world, imageStore), entity.actionPeriod);
-                scheduleEvent(entity, new Animation(entity, 0), entity.getAnimationPeriod());
+                scheduleEvent(entity, Activity.createActivityAction(entity, world, imageStore), entity.getActionPeriod());
+                scheduleAnimation(entity);
                 break;
 
             default:
         }
     }
 
+    /*
+       Loads the pending events of a restored checkpoint in one batch and
+       sets the clock. The queue must be empty.
+     */
+    public void restore(List<Event> events, double currentTime) {
+        for (Event event : events) {
+            event.cancelled = false;
+            addPendingEvent(event);
+        }
+        this.eventQueue.addAll(events);
+        this.liveEvents = events.size();
+        this.deadEvents = 0;
+        this.peakQueueDepth = Math.max(this.peakQueueDepth, this.liveEvents);
+        this.currentTime = currentTime;
+    }
+
+    /*
+       Schedules the initial actions of many entities at once, at startup
+       or for a large spawn. The events go into the queue as one batch,
+       which the heap builds in linear time.
+     */
+    public void scheduleActions(Collection<Entity> entities, WorldModel world, ImageStore imageStore) {
+        if (this.pendingEvents.isEmpty()) {
+            this.pendingEvents = new HashMap<>(Math.max(16, (int) (entities.size() / 0.75f) + 1));
+        }
+        this.batch = new ArrayList<>(2 * entities.size());
+        try {
+            for (Entity entity : entities) {
+                scheduleActions(entity, world, imageStore);
+            }
+        } finally {
+            this.eventQueue.addAll(this.batch);
+            this.batch = null;
+        }
+    }
+
     public void updateOnTime(double time) {
         double stopTime = this.currentTime + time;
         while (!this.eventQueue.isEmpty() && this.eventQueue.peek().time <= stopTime) {
             Event next = this.eventQueue.poll();
+            if (next.cancelled) {
+                this.deadEvents--;
+                continue;
+            }
+            this.liveEvents--;
             removePendingEvent(next);
+            next.entity.markChanged();
             this.currentTime = next.time;
+            this.currentEvent = next;
+            this.executedEvents[next.action.getKind().ordinal()]++;
             next.action.executeAction(this);
+            // an entity left with no pending events drops out of the map
+            this.pendingEvents.remove(next.entity, null);
         }
+        this.currentEvent = null;
         this.currentTime = stopTime;
     }
 }
@@ -0,0 +1,155 @@
+import java.util.*;
+
+/**
+ * A distance field over the world grid for one set of target kinds,
+ * shared by every agent chasing those kinds. Each cell holds the number
+ * of steps to the nearest target, found by one multi-source BFS from all
+ * targets, so an agent's next step is a lookup of its lowest neighbour.
+ *
+ * Only stationary entities shape the field. Dudes and fairies are left
+ * out of it and are instead checked when a step is taken, so agents
+ * moving around never invalidate it.
+ */
+public final class FlowField {
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private static final int[] STEP_X = {-1, 1, 0, 0};
+    private static final int[] STEP_Y = {0, 0, -1, 1};
+
+    private final WorldModel world;
+    private final List<EntityKind> targets;
+    private final boolean stumpsPassable;
+    private int[] distance;
+    private int[] queue;
+    private boolean dirty;
+
+    /*
+       stumpsPassable is true for dudes, which may walk over stumps.
+     */
+    public FlowField(WorldModel world, List<EntityKind> targets, boolean stumpsPassable) {
+        this.world = world;
+        this.targets = targets;
+        this.stumpsPassable = stumpsPassable;
+        this.dirty = true;
+    }
+
+    public static boolean isMobile(EntityKind kind) {
+        return kind == EntityKind.DUDE_FULL || kind == EntityKind.DUDE_NOT_FULL || kind == EntityKind.FAIRY;
+    }
+
+    public boolean isTarget(EntityKind kind) {
+        return this.targets.contains(kind);
+    }
+
+    public void invalidate() {
+        this.dirty = true;
+    }
+
+    /*
+       A new target only shortens paths, so it is merged into a clean field
+       by a BFS from that one cell instead of a full rebuild.
+     */
+    public void addTarget(long pos) {
+        if (!this.dirty) {
+            int cell = cell(Point.x(pos), Point.y(pos));
+            this.distance[cell] = 0;
+            this.queue[0] = cell;
+            sweep(1);
+        }
+    }
+
+    public int distance(long pos) {
+        refresh();
+        return this.distance[cell(Point.x(pos), Point.y(pos))];
+    }
+
+    /*
+       The neighbour of pos one step closer to a target, or pos itself if
+       there is none or the way is blocked right now.
+     */
+    public long nextStep(long pos) {
+        refresh();
+        int x = Point.x(pos);
+        int y = Point.y(pos);
+        int best = this.distance[cell(x, y)];
+        long next = pos;
+        for (int i = 0; i < STEP_X.length; i++) {
+            int nx = x + STEP_X[i];
+            int ny = y + STEP_Y[i];
+            if (inBounds(nx, ny) && this.distance[cell(nx, ny)] < best) {
+                long candidate = Point.pack(nx, ny);
+                if (canEnter(this.world.getOccupancyCell(candidate))) {
+                    best = this.distance[cell(nx, ny)];
+                    next = candidate;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void refresh() {
+        int cells = this.world.numRows * this.world.numCols;
+        if (this.distance == null || this.distance.length != cells) {
+            this.distance = new int[cells];
+            this.queue = new int[cells];
+            this.dirty = true;
+        }
+        if (!this.dirty) {
+            return;
+        }
+
+        Arrays.fill(this.distance, UNREACHABLE);
+        int sources = 0;
+        for (Entity entity : this.world.entities) {
+            if (isTarget(entity.getKind())) {
+                int cell = cell(entity.getX(), entity.getY());
+                this.distance[cell] = 0;
+                this.queue[sources++] = cell;
+            }
+        }
+        sweep(sources);
+        this.dirty = false;
+    }
+
+    /*
+       Breadth-first relaxation from the first count cells of the queue.
+     */
+    private void sweep(int count) {
+        int numCols = this.world.numCols;
+        int head = 0;
+        int tail = count;
+        while (head < tail) {
+            int cell = this.queue[head++];
+            int x = cell % numCols;
+            int y = cell / numCols;
+            int next = this.distance[cell] + 1;
+            for (int i = 0; i < STEP_X.length; i++) {
+                int nx = x + STEP_X[i];
+                int ny = y + STEP_Y[i];
+                if (inBounds(nx, ny)) {
+                    int neighbour = cell(nx, ny);
+                    if (next < this.distance[neighbour] && isPassable(this.world.getOccupancyCell(nx, ny))) {
+                        this.distance[neighbour] = next;
+                        this.queue[tail++] = neighbour;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isPassable(Entity occupant) {
+        return occupant == null || isMobile(occupant.getKind()) || canEnter(occupant);
+    }
+
+    private boolean canEnter(Entity occupant) {
+        return occupant == null || this.stumpsPassable && occupant.getKind() == EntityKind.STUMP;
+    }
+
+    private boolean inBounds(int x, int y) {
+        return y >= 0 && y < this.world.numRows && x >= 0 && x < this.world.numCols;
+    }
+
+    private int cell(int x, int y) {
+        return y * this.world.numCols + x;
+    }
+}
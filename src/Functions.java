@@ -6,8 +6,6 @@ import java.util.*;
  * by refactoring this codebase to follow an OOP style.
  */
 public final class Functions {
-    public static final Random rand = new Random();
-
     public static final int COLOR_MASK = 0xffffff;
     public static final int KEYED_IMAGE_MIN = 5;
     public static final int KEYED_RED_IDX = 2;
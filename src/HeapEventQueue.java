@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * The default event queue: a binary heap ordered by EventComparator.
+ *
+ * The heap is kept in an array rather than a PriorityQueue so that a
+ * batch of events can be loaded with one bottom-up heapify. Events at
+ * the same time run in the order they were added, as in the timing
+ * wheel, so a batch runs exactly as if its events were added one by one.
+ */
+public final class HeapEventQueue implements EventQueue {
+    private static final int INITIAL_CAPACITY = 11;
+
+    private final EventComparator comparator;
+    private Event[] heap;
+    private int size;
+    private long nextSequence;
+
+    public HeapEventQueue() {
+        this.comparator = new EventComparator();
+        this.heap = new Event[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    public void add(Event event) {
+        ensureCapacity(this.size + 1);
+        event.sequence = this.nextSequence++;
+        siftUp(this.size++, event);
+    }
+
+    /*
+       Appends the events and restores the heap in one O(n) pass, unless
+       the batch is small next to the heap and sifting each in is cheaper.
+     */
+    public void addAll(Collection<Event> events) {
+        if (events.size() < this.size >>> 3) {
+            for (Event event : events) {
+                add(event);
+            }
+            return;
+        }
+        ensureCapacity(this.size + events.size());
+        for (Event event : events) {
+            event.sequence = this.nextSequence++;
+            this.heap[this.size++] = event;
+        }
+        heapify();
+    }
+
+    public Event peek() {
+        return this.size == 0 ? null : this.heap[0];
+    }
+
+    public Event poll() {
+        if (this.size == 0) {
+            return null;
+        }
+        Event result = this.heap[0];
+        Event last = this.heap[--this.size];
+        this.heap[this.size] = null;
+        if (this.size > 0) {
+            siftDown(0, last);
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean removeIf(Predicate<Event> filter) {
+        int kept = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (!filter.test(this.heap[i])) {
+                this.heap[kept++] = this.heap[i];
+            }
+        }
+        if (kept == this.size) {
+            return false;
+        }
+        Arrays.fill(this.heap, kept, this.size, null);
+        this.size = kept;
+        heapify();
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.heap.length) {
+            this.heap = Arrays.copyOf(this.heap, Math.max(capacity, this.heap.length * 2));
+        }
+    }
+
+    private void heapify() {
+        for (int i = (this.size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, this.heap[i]);
+        }
+    }
+
+    private void siftUp(int k, Event event) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            Event e = this.heap[parent];
+            if (this.comparator.compare(event, e) >= 0) {
+                break;
+            }
+            this.heap[k] = e;
+            k = parent;
+        }
+        this.heap[k] = event;
+    }
+
+    private void siftDown(int k, Event event) {
+        int half = this.size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            int right = child + 1;
+            Event c = this.heap[child];
+            if (right < this.size && this.comparator.compare(c, this.heap[right]) > 0) {
+                c = this.heap[child = right];
+            }
+            if (this.comparator.compare(event, c) <= 0) {
+                break;
+            }
+            this.heap[k] = c;
+            k = child;
+        }
+        this.heap[k] = event;
+    }
+}
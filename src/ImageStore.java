@@ -1,28 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import processing.core.PImage;
 
+/**
+ * The image sequences of each imagelist key.
+ *
+ * Sequences are built in array lists while loading and frozen into
+ * immutable lists afterwards, so picking a frame is a constant time index.
+ * buildAtlas optionally packs every sprite into one atlas image; each
+ * sequence then holds Sprites, which draw() renders as sub-regions of
+ * the shared atlas.
+ *
+ * loadImages only reads the imagelist: each image is a DeferredImage that
+ * is decoded on first use, or ahead of time on the common pool when its
+ * sequence is prefetched. Color-keyed images are kept in cacheDir after keying, under
+ * a hash of the source file and the key color, so later runs read their
+ * pixels back instead of decoding and keying them again.
+ */
 public final class ImageStore {
+    // width of the atlas, unless a sprite is wider
+    public static final int ATLAS_WIDTH = 1024;
+
     public Map<String, List<PImage>> images;
     public List<PImage> defaultImages;
+    public PImage atlas;
+    // where keyed images are cached, or null for no cache
+    public Path cacheDir;
+    public final AtomicInteger decoded = new AtomicInteger();
+    public final AtomicInteger cacheHits = new AtomicInteger();
+
+    /**
+     * An image that is a region of the atlas. It shares the pixels of the
+     * image it was packed from, so it still works as a plain PImage.
+     */
+    public static final class Sprite extends PImage {
+        public final PImage atlas;
+        public final int u;
+        public final int v;
+
+        private Sprite(PImage image, PImage atlas, int u, int v) {
+            super(image.width, image.height, image.format);
+            this.pixels = image.pixels;
+            this.atlas = atlas;
+            this.u = u;
+            this.v = v;
+        }
+    }
+
+    /**
+     * An image file that is decoded, and color keyed, the first time it is
+     * loaded. Until then it is empty. If the file cannot be decoded the
+     * image becomes a copy of the store's default image.
+     */
+    public static final class DeferredImage extends PImage {
+        private final ImageStore store;
+        private final PApplet screen;
+        private final String file;
+        private final boolean keyed;
+        private final int keyColor;
+        private volatile boolean loaded;
+
+        private DeferredImage(ImageStore store, PApplet screen, String file, boolean keyed, int keyColor) {
+            this.store = store;
+            this.screen = screen;
+            this.file = file;
+            this.keyed = keyed;
+            this.keyColor = keyColor;
+        }
+
+        public boolean isLoaded() {
+            return this.loaded;
+        }
+
+        public void load() {
+            if (this.loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (!this.loaded) {
+                    adopt(this.store.decode(this));
+                    this.loaded = true;
+                }
+            }
+        }
+
+        private void adopt(PImage image) {
+            image.loadPixels();
+            this.format = image.format;
+            this.width = image.width;
+            this.height = image.height;
+            this.pixelDensity = image.pixelDensity;
+            this.pixelWidth = image.pixelWidth;
+            this.pixelHeight = image.pixelHeight;
+            this.pixels = image.pixels;
+            setModified();
+        }
+    }
 
     public ImageStore(PImage defaultImage) {
         this.images = new HashMap<>();
-        defaultImages = new LinkedList<>();
-        defaultImages.add(defaultImage);
+        defaultImages = Collections.singletonList(defaultImage);
     }
 
     public static PImage getCurrentImage(Object object) {
         if (object instanceof Background background) {
             return background.images.get(background.imageIndex);
         } else if (object instanceof Entity entity) {
-            return entity.images.get(entity.imageIndex % entity.images.size());
+            return entity.getImages().get(entity.getImageIndex() % entity.getImages().size());
         } else {
             throw new UnsupportedOperationException(String.format("getCurrentImage not supported for %s", object));
         }
     }
 
+    /*
+       Draws the image with its top left corner at x, y, from the atlas if
+       it is a Sprite.
+     */
+    public static void draw(PGraphics target, PImage image, float x, float y) {
+        if (image instanceof DeferredImage deferred) {
+            deferred.load();
+        }
+        if (image instanceof Sprite sprite) {
+            target.image(sprite.atlas, x, y, sprite.width, sprite.height, sprite.u, sprite.v, sprite.u + sprite.width, sprite.v + sprite.height);
+        } else {
+            target.image(image, x, y);
+        }
+    }
+
     /*
           Called with color for which alpha should be set and alpha value.
           setAlpha(img, color(255, 255, 255), 0));
@@ -41,25 +156,22 @@ public final class ImageStore {
     }
 
     public static List<PImage> getImages(Map<String, List<PImage>> images, String key) {
-        return images.computeIfAbsent(key, k -> new LinkedList<>());
+        return images.computeIfAbsent(key, k -> new ArrayList<>());
     }
 
-    public static void processImageLine(Map<String, List<PImage>> images, String line, PApplet screen) {
+    public void processImageLine(String line, PApplet screen) {
         String[] attrs = line.split("\\s");
         if (attrs.length >= 2) {
             String key = attrs[0];
-            PImage img = screen.loadImage(attrs[1]);
-            if (img != null && img.width != -1) {
-                List<PImage> imgs = getImages(images, key);
-                imgs.add(img);
-
-                if (attrs.length >= Functions.KEYED_IMAGE_MIN) {
-                    int r = Integer.parseInt(attrs[Functions.KEYED_RED_IDX]);
-                    int g = Integer.parseInt(attrs[Functions.KEYED_GREEN_IDX]);
-                    int b = Integer.parseInt(attrs[Functions.KEYED_BLUE_IDX]);
-                    setAlpha(img, screen.color(r, g, b), 0);
-                }
+            boolean keyed = attrs.length >= Functions.KEYED_IMAGE_MIN;
+            int keyColor = 0;
+            if (keyed) {
+                int r = Integer.parseInt(attrs[Functions.KEYED_RED_IDX]);
+                int g = Integer.parseInt(attrs[Functions.KEYED_GREEN_IDX]);
+                int b = Integer.parseInt(attrs[Functions.KEYED_BLUE_IDX]);
+                keyColor = screen.color(r, g, b);
             }
+            getImages(this.images, key).add(new DeferredImage(this, screen, attrs[1], keyed, keyColor));
         }
     }
 
@@ -67,12 +179,178 @@ public final class ImageStore {
         int lineNumber = 0;
         while (in.hasNextLine()) {
             try {
-                processImageLine(this.images, in.nextLine(), screen);
+                processImageLine(in.nextLine(), screen);
             } catch (NumberFormatException e) {
                 System.out.printf("Image format error on line %d\n", lineNumber);
             }
             lineNumber++;
         }
+        freeze();
+    }
+
+    /*
+       Starts decoding the images of a sequence that are not yet loaded on
+       the common pool, so that they are ready when first drawn.
+     */
+    public static void prefetch(List<PImage> sequence) {
+        for (PImage image : sequence) {
+            if (image instanceof DeferredImage deferred && !deferred.isLoaded()) {
+                ForkJoinPool.commonPool().execute(deferred::load);
+            }
+        }
+    }
+
+    /*
+       Returns the pixels of a deferred image: from the cache if keyed and
+       cached, and otherwise decoded, keyed and then cached.
+     */
+    private PImage decode(DeferredImage image) {
+        Path cached = image.keyed && this.cacheDir != null ? cacheFile(image) : null;
+        if (cached != null) {
+            PImage hit = readCached(cached);
+            if (hit != null) {
+                this.cacheHits.incrementAndGet();
+                return hit;
+            }
+        }
+
+        PImage img = image.screen.loadImage(image.file);
+        if (img == null || img.width == -1) {
+            PImage fallback = this.defaultImages.get(0);
+            return fallback == null ? new PImage(1, 1, PApplet.ARGB) : fallback.copy();
+        }
+        this.decoded.incrementAndGet();
+        if (image.keyed) {
+            setAlpha(img, image.keyColor, 0);
+            if (cached != null) {
+                writeCached(cached, img);
+            }
+        }
+        return img;
+    }
+
+    private Path cacheFile(DeferredImage image) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Files.readAllBytes(Path.of(image.file)));
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(image.keyColor).array());
+            return this.cacheDir.resolve(HexFormat.of().formatHex(digest.digest()) + ".argb");
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            // a file only the sketch can resolve, or no hash: skip the cache
+            return null;
+        }
+    }
+
+    /*
+       A cache entry is the width, the height and then the ARGB pixels.
+     */
+    private static PImage readCached(Path path) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (width <= 0 || height <= 0 || buffer.remaining() != width * height * Integer.BYTES) {
+                return null;
+            }
+            PImage img = new PImage(width, height, PApplet.ARGB);
+            buffer.asIntBuffer().get(img.pixels);
+            return img;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeCached(Path path, PImage img) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + img.pixels.length * Integer.BYTES);
+        buffer.putInt(img.width).putInt(img.height);
+        buffer.asIntBuffer().put(img.pixels);
+        try {
+            Files.createDirectories(path.getParent());
+            // written aside and moved in, so a concurrent run never reads half an entry
+            Path temp = Files.createTempFile(path.getParent(), "image", ".tmp");
+            Files.write(temp, buffer.array());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("could not cache " + path + ": " + e.getMessage());
+        }
+    }
+
+    /*
+       Replaces each sequence with an immutable copy once loading is done.
+     */
+    public void freeze() {
+        this.images.replaceAll((key, images) -> List.copyOf(images));
+    }
+
+    /*
+       Packs every image, including the default, into one atlas in rows of
+       images sorted by height, and replaces each with a Sprite of it.
+       Must run before entities and backgrounds take their sequences.
+     */
+    public void buildAtlas() {
+        Map<PImage, Sprite> sprites = new IdentityHashMap<>();
+        List<PImage> packed = new ArrayList<>();
+        for (List<PImage> sequence : this.images.values()) {
+            addDistinct(packed, sprites, sequence);
+        }
+        addDistinct(packed, sprites, this.defaultImages);
+        if (packed.isEmpty()) {
+            return;
+        }
+        packed.sort(Comparator.comparingInt((PImage image) -> image.height).reversed());
+
+        int width = ATLAS_WIDTH;
+        for (PImage image : packed) {
+            width = Math.max(width, image.width);
+        }
+        int[] us = new int[packed.size()];
+        int[] vs = new int[packed.size()];
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+        for (int i = 0; i < packed.size(); i++) {
+            PImage image = packed.get(i);
+            if (x + image.width > width) {
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            us[i] = x;
+            vs[i] = y;
+            x += image.width;
+            rowHeight = Math.max(rowHeight, image.height);
+        }
+
+        PImage atlas = new PImage(width, y + rowHeight, PApplet.ARGB);
+        atlas.loadPixels();
+        for (int i = 0; i < packed.size(); i++) {
+            PImage image = packed.get(i);
+            image.loadPixels();
+            int opaque = image.format == PApplet.ARGB ? 0 : 0xff000000;
+            for (int row = 0; row < image.height; row++) {
+                for (int col = 0; col < image.width; col++) {
+                    atlas.pixels[(vs[i] + row) * width + us[i] + col] = image.pixels[row * image.width + col] | opaque;
+                }
+            }
+            sprites.put(image, new Sprite(image, atlas, us[i], vs[i]));
+        }
+        atlas.updatePixels();
+
+        this.images.replaceAll((key, images) -> images.stream().map(sprites::get).map(PImage.class::cast).toList());
+        this.defaultImages = Collections.singletonList(sprites.get(this.defaultImages.get(0)));
+        this.atlas = atlas;
+    }
+
+    private static void addDistinct(List<PImage> packed, Map<PImage, Sprite> sprites, List<PImage> sequence) {
+        for (PImage image : sequence) {
+            if (image instanceof DeferredImage deferred) {
+                deferred.load();
+            }
+            if (image != null && !sprites.containsKey(image)) {
+                sprites.put(image, null);
+                packed.add(image);
+            }
+        }
     }
 
     public List<PImage> getImageList(String key) {
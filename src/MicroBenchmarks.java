@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import processing.awt.PGraphicsJava2D;
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Microbenchmarks for the simulation hot paths, run against synthetic
+ * worlds so any change to these classes can be measured before it ships.
+ * Each case is warmed up, then timed over several fixed-length
+ * iterations, and reported as mean and standard deviation in ns/op.
+ *
+ * Usage: MicroBenchmarks [name filter ...]
+ */
+public final class MicroBenchmarks {
+    public static final int WARMUP_ITERATIONS = 5;
+    public static final int MEASURE_ITERATIONS = 10;
+    public static final long ITERATION_NANOS = 200_000_000L;
+    public static final long SEED = 203;
+
+    private static final String[] QUEUES = {"heap", "wheel"};
+
+    // results are folded in here so the JIT cannot discard the measured work
+    public static volatile long sink;
+
+    /**
+     * A benchmark body: performs ops operations and returns a value
+     * derived from their results.
+     */
+    public interface Case {
+        long run(int ops);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        List<String> filters = Arrays.asList(args);
+
+        for (int entities : new int[]{1_000, 10_000, 100_000}) {
+            measure(filters, "world.findNearest", entities, findNearest(entities));
+        }
+        for (String queue : QUEUES) {
+            measure(filters, "scheduler.scheduleEvent/" + queue, 100_000, scheduleEvent(queue, 100_000));
+            measure(filters, "scheduler.updateOnTime/" + queue, 10_000, updateOnTime(queue, 10_000));
+            measure(filters, "scheduler.unscheduleAllEvents/" + queue, 100_000, unscheduleAllEvents(queue, 100_000));
+            measure(filters, "scheduler.scheduleActions/" + queue, 100_000, scheduleActions(queue, 100_000));
+        }
+        for (int entities : new int[]{10_000, 100_000}) {
+            measure(filters, "world.load", entities, load(entities));
+            measure(filters, "snapshot.read", entities, readSnapshot(entities));
+            measure(filters, "parser.load", entities, parseFile(entities));
+            measure(filters, "checkpoint.delta", entities, checkpointDelta(entities));
+        }
+        for (int size : new int[]{32, 256}) {
+            measure(filters, "imageStore.setAlpha", size, setAlpha(size));
+        }
+        for (int entities : new int[]{1_000, 100_000}) {
+            measure(filters, "view.drawViewport/scroll", entities, drawViewport(entities, true));
+            measure(filters, "view.drawViewport/still", entities, drawViewport(entities, false));
+        }
+    }
+
+    private static void measure(List<String> filters, String name, int param, Case body) {
+        if (!filters.isEmpty() && filters.stream().noneMatch(name::contains)) {
+            return;
+        }
+
+        long batch = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            batch = iteration(body, batch)[2];
+        }
+
+        double[] results = new double[MEASURE_ITERATIONS];
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long[] timed = iteration(body, batch);
+            results[i] = (double) timed[0] / timed[1];
+        }
+
+        double mean = Arrays.stream(results).average().orElse(0);
+        double variance = Arrays.stream(results).map(r -> (r - mean) * (r - mean)).sum() / results.length;
+        System.out.printf("%-40s %8d %14.1f ns/op  +- %.1f%n", name, param, mean, Math.sqrt(variance));
+    }
+
+    /*
+       Runs batches until an iteration's worth of time has passed.
+       Returns the elapsed nanos, the ops run and the batch size to use next.
+     */
+    private static long[] iteration(Case body, long batch) {
+        long ops = 0;
+        long sum = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sum += body.run((int) batch);
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed < ITERATION_NANOS / 100 && batch < (1 << 24)) {
+                batch *= 2;
+            }
+        } while (elapsed < ITERATION_NANOS);
+        sink += sum;
+        return new long[]{elapsed, ops, batch};
+    }
+
+    /*
+       Builds the text of a save file with the given number of randomly
+       placed entities on a grid with roughly twice as many cells.
+     */
+    public static String generateSave(int entityCount, boolean dynamic, long seed) {
+        int side = (int) Math.ceil(Math.sqrt(entityCount * 2.0));
+        Random rand = new Random(seed);
+        StringBuilder sb = new StringBuilder(String.format("Rows:\n%d\nCols:\n%d\nBackgrounds:\n", side, side));
+        for (int row = 0; row < side; row++) {
+            for (int col = 0; col < side; col++) {
+                sb.append(col == 0 ? "" : " ").append(rand.nextInt(8) == 0 ? "flowers" : "grass");
+            }
+            sb.append('\n');
+        }
+
+        sb.append("Entities:\n");
+        boolean[] used = new boolean[side * side];
+        int placed = 0;
+        while (placed < entityCount) {
+            int cell = rand.nextInt(side * side);
+            if (used[cell]) {
+                continue;
+            }
+            used[cell] = true;
+            int x = cell % side;
+            int y = cell / side;
+            switch (dynamic ? rand.nextInt(2) : rand.nextInt(5)) {
+                case 0 -> sb.append(String.format(Locale.ROOT, "tree t%d %d %d %.3f %.3f %d\n", placed, x, y, 0.05 + rand.nextDouble() * 0.55, 1.0 + rand.nextDouble() * 0.4, 1 + rand.nextInt(3)));
+                case 1 -> sb.append(String.format(Locale.ROOT, "obstacle o%d %d %d %.3f\n", placed, x, y, 0.05 + rand.nextDouble() * 1.35));
+                case 2 -> sb.append(String.format("stump s%d %d %d\n", placed, x, y));
+                case 3 -> sb.append(String.format("sapling p%d %d %d 0\n", placed, x, y));
+                default -> sb.append(String.format("house h%d %d %d\n", placed, x, y));
+            }
+            placed++;
+        }
+        return sb.toString();
+    }
+
+    private static WorldModel loadWorld(String save, ImageStore imageStore) {
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(save), imageStore, VirtualWorld.createDefaultBackground(imageStore));
+        return world;
+    }
+
+    private static ImageStore imageStore() {
+        return new ImageStore(VirtualWorld.createImageColored(VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT, VirtualWorld.DEFAULT_IMAGE_COLOR));
+    }
+
+    private static EventScheduler scheduler(String queue) {
+        return new EventScheduler(queue.equals("wheel") ? new TimingWheelEventQueue() : new HeapEventQueue());
+    }
+
+    private static Case findNearest(int entityCount) {
+        WorldModel world = loadWorld(generateSave(entityCount, false, SEED), imageStore());
+        List<EntityKind> kinds = List.of(EntityKind.TREE, EntityKind.SAPLING);
+        Random rand = new Random(SEED);
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                long pos = Point.pack(rand.nextInt(world.numCols), rand.nextInt(world.numRows));
+                sum += world.findNearest(pos, kinds).map(Entity::getX).orElse(0);
+            }
+            return sum;
+        };
+    }
+
+    private static Case scheduleEvent(String queue, int pending) {
+        Entity[] entities = new Entity[pending];
+        EntityStore store = new EntityStore(pending);
+        for (int i = 0; i < pending; i++) {
+            entities[i] = Entity.createStump(store, "stump", new Point(0, 0), null);
+        }
+        Action action = s -> { };
+        Random rand = new Random(SEED);
+        return ops -> {
+            EventScheduler scheduler = scheduler(queue);
+            for (int i = 0; i < ops; i++) {
+                scheduler.scheduleEvent(entities[i % pending], action, 0.05 + rand.nextDouble() * 1.35);
+                if (scheduler.liveEvents > pending) {
+                    scheduler.updateOnTime(0.001);
+                }
+            }
+            return scheduler.liveEvents;
+        };
+    }
+
+    private static Case updateOnTime(String queue, int entityCount) {
+        ImageStore imageStore = imageStore();
+        WorldModel world = loadWorld(generateSave(entityCount, true, SEED), imageStore);
+        EventScheduler scheduler = scheduler(queue);
+        for (Entity entity : world.entities) {
+            scheduler.scheduleActions(entity, world, imageStore);
+        }
+        return ops -> {
+            for (int i = 0; i < ops; i++) {
+                scheduler.updateOnTime(0.001);
+            }
+            return scheduler.liveEvents;
+        };
+    }
+
+    /*
+       Schedules the start-up actions of a whole world in one batch.
+     */
+    private static Case scheduleActions(String queue, int entityCount) {
+        ImageStore imageStore = imageStore();
+        WorldModel world = loadWorld(generateSave(entityCount, true, SEED), imageStore);
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                EventScheduler scheduler = scheduler(queue);
+                VirtualWorld.scheduleActions(world, scheduler, imageStore);
+                sum += scheduler.liveEvents;
+            }
+            return sum;
+        };
+    }
+
+    private static Case unscheduleAllEvents(String queue, int pending) {
+        EventScheduler scheduler = scheduler(queue);
+        Action action = s -> { };
+        Random rand = new Random(SEED);
+        List<Entity> entities = new ArrayList<>();
+        EntityStore store = new EntityStore(pending / 2);
+        for (int i = 0; i < pending / 2; i++) {
+            Entity entity = Entity.createStump(store, "stump", new Point(0, 0), null);
+            scheduler.scheduleEvent(entity, action, 1000 + rand.nextDouble());
+            scheduler.scheduleEvent(entity, action, 1000 + rand.nextDouble());
+            entities.add(entity);
+        }
+        return ops -> {
+            for (int i = 0; i < ops; i++) {
+                int index = rand.nextInt(entities.size());
+                Entity entity = entities.get(index);
+                scheduler.unscheduleAllEvents(entity);
+                scheduler.scheduleEvent(entity, action, 1000 + rand.nextDouble());
+                scheduler.scheduleEvent(entity, action, 1000 + rand.nextDouble());
+            }
+            return scheduler.liveEvents;
+        };
+    }
+
+    private static Case load(int entityCount) {
+        String save = generateSave(entityCount, false, SEED);
+        ImageStore imageStore = imageStore();
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += loadWorld(save, imageStore).entities.size();
+            }
+            return sum;
+        };
+    }
+
+    private static Case readSnapshot(int entityCount) {
+        ImageStore imageStore = imageStore();
+        byte[] snapshot = WorldSnapshot.toBytes(loadWorld(generateSave(entityCount, false, SEED), imageStore));
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += WorldSnapshot.read(ByteBuffer.wrap(snapshot), imageStore).entities.size();
+            }
+            return sum;
+        };
+    }
+
+    private static Case parseFile(int entityCount) {
+        ImageStore imageStore = imageStore();
+        Path file;
+        try {
+            file = Files.createTempFile("world", ".sav");
+            file.toFile().deleteOnExit();
+            Files.writeString(file, generateSave(entityCount, false, SEED));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                try {
+                    sum += SaveFileParser.load(new WorldModel(), file, imageStore, null).lines;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return sum;
+        };
+    }
+
+    /*
+       Advances a busy world by one millisecond and appends a delta
+       checkpoint, which is the pause a running world would see.
+     */
+    private static Case checkpointDelta(int entityCount) {
+        ImageStore imageStore = imageStore();
+        WorldModel world = loadWorld(generateSave(entityCount, true, SEED), imageStore);
+        EventScheduler scheduler = scheduler("heap");
+        VirtualWorld.scheduleActions(world, scheduler, imageStore);
+        Checkpoint checkpoint;
+        try {
+            Path file = Files.createTempFile("world", ".ckp");
+            file.toFile().deleteOnExit();
+            checkpoint = new Checkpoint(file);
+            checkpoint.writeFull(world, scheduler);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                scheduler.updateOnTime(0.001);
+                try {
+                    checkpoint.writeDelta(world, scheduler);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                sum += checkpoint.lastEntities;
+            }
+            return sum;
+        };
+    }
+
+    private static Case setAlpha(int size) {
+        PImage img = VirtualWorld.createImageColored(size, size, 0xffffff);
+        return ops -> {
+            for (int i = 0; i < ops; i++) {
+                ImageStore.setAlpha(img, 0xffffff, 0);
+            }
+            return img.pixels[0];
+        };
+    }
+
+    /*
+       Scrolling redraws the whole view each frame; a still view redraws
+       only the cells that changed, here none.
+     */
+    private static Case drawViewport(int entityCount, boolean scroll) {
+        ImageStore imageStore = imageStore();
+        WorldModel world = loadWorld(generateSave(entityCount, false, SEED), imageStore);
+
+        PApplet screen = new PApplet();
+        PGraphicsJava2D graphics = new PGraphicsJava2D();
+        graphics.setParent(screen);
+        graphics.setPrimary(false);
+        graphics.setSize(VirtualWorld.VIEW_WIDTH, VirtualWorld.VIEW_HEIGHT);
+        screen.g = graphics;
+
+        WorldView view = new WorldView(VirtualWorld.VIEW_ROWS, VirtualWorld.VIEW_COLS, screen, world, VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT);
+        Random rand = new Random(SEED);
+        return ops -> {
+            graphics.beginDraw();
+            for (int i = 0; i < ops; i++) {
+                if (scroll) {
+                    view.shiftView(rand.nextInt(3) - 1, rand.nextInt(3) - 1);
+                }
+                view.drawViewport();
+            }
+            graphics.endDraw();
+            return view.viewport.col;
+        };
+    }
+}
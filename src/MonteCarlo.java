@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs many independent worlds concurrently, each with its own
+ * WorldModel and EventScheduler, all sharing one read-only ImageStore.
+ * Results are handed to the caller in completion order as they arrive.
+ * Run i is seeded from the base seed (-seed, or a random one) and i.
+ *
+ * Usage: VirtualWorld -montecarlo world.sav [--runs 1000] [--sim-seconds 60]
+ *        [--threads N] [-seed S] [other VirtualWorld flags]
+ *
+ * With --save-text the world argument is the save text itself rather
+ * than a file name.
+ */
+public final class MonteCarlo {
+    public static final String RUNS_OPTION = "--runs";
+    public static final String THREADS_OPTION = "--threads";
+    public static final String SAVE_TEXT_OPTION = "--save-text";
+    public static final int DEFAULT_RUNS = 100;
+
+    public String save;
+    public double lifetime;
+    public ImageStore imageStore;
+    public VirtualWorld settings;
+    public long baseSeed;
+
+    /**
+     * The outcome of a single simulated world.
+     */
+    public static final class Result {
+        public final int run;
+        public final long seed;
+        public final List<String> log;
+        public final Map<EntityKind, Integer> population;
+
+        public Result(int run, long seed, List<String> log, Map<EntityKind, Integer> population) {
+            this.run = run;
+            this.seed = seed;
+            this.log = log;
+            this.population = population;
+        }
+    }
+
+    /**
+     * Running per-kind population statistics over the results seen so far.
+     */
+    public static final class Summary implements Consumer<Result> {
+        public int runs;
+        public final Map<EntityKind, IntSummaryStatistics> population;
+
+        public Summary() {
+            this.runs = 0;
+            this.population = new EnumMap<>(EntityKind.class);
+            for (EntityKind kind : EntityKind.values()) {
+                this.population.put(kind, new IntSummaryStatistics());
+            }
+        }
+
+        public void accept(Result result) {
+            this.runs++;
+            for (EntityKind kind : EntityKind.values()) {
+                this.population.get(kind).accept(result.population.getOrDefault(kind, 0));
+            }
+        }
+
+        public String report() {
+            StringBuilder sb = new StringBuilder(String.format("runs: %d%n", this.runs));
+            for (Map.Entry<EntityKind, IntSummaryStatistics> entry : this.population.entrySet()) {
+                IntSummaryStatistics stats = entry.getValue();
+                sb.append(String.format("  %-14s min %6d  mean %10.2f  max %6d%n", entry.getKey(), stats.getMin(), stats.getAverage(), stats.getMax()));
+            }
+            return sb.toString();
+        }
+    }
+
+    /*
+       settings supplies the scheduler options (e.g. -wheel) for every run;
+       save is the text of a save file.
+     */
+    public MonteCarlo(String save, double lifetime, ImageStore imageStore, VirtualWorld settings) {
+        this.save = save;
+        this.lifetime = lifetime;
+        this.imageStore = imageStore;
+        this.settings = settings;
+        this.baseSeed = settings.seeded ? settings.seed : new SplittableRandom().nextLong();
+    }
+
+    /*
+       Each run's seed depends only on the base seed and the run number,
+       so results are reproducible whatever order the runs finish in.
+     */
+    public long seedFor(int run) {
+        return new SplittableRandom(this.baseSeed + run).nextLong();
+    }
+
+    public Result simulate(int run) {
+        WorldModel world = new WorldModel();
+        world.memoryBudget = this.settings.memoryBudget;
+        world.load(new Scanner(this.save), this.imageStore, VirtualWorld.createDefaultBackground(this.imageStore));
+        long seed = seedFor(run);
+        world.setSeed(seed);
+        if (this.settings.flowFields) {
+            world.enableFlowFields();
+        }
+        if (this.settings.pathfinding) {
+            world.enablePathfinding();
+        }
+        EventScheduler scheduler = this.settings.createScheduler();
+        VirtualWorld.scheduleActions(world, scheduler, this.imageStore);
+        scheduler.updateOnTime(this.lifetime);
+
+        Map<EntityKind, Integer> population = new EnumMap<>(EntityKind.class);
+        for (Entity entity : world.entities) {
+            population.merge(entity.getKind(), 1, Integer::sum);
+        }
+        return new Result(run, seed, world.log(), population);
+    }
+
+    /*
+       Simulates runs worlds on a pool of the given size, passing each
+       result to onResult on the calling thread as soon as it completes.
+     */
+    public void run(int runs, int parallelism, Consumer<Result> onResult) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            CompletionService<Result> completed = new ExecutorCompletionService<>(pool);
+            for (int run = 0; run < runs; run++) {
+                int index = run;
+                completed.submit(() -> simulate(index));
+            }
+            for (int run = 0; run < runs; run++) {
+                onResult.accept(completed.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("simulation failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> worldArgs = new ArrayList<>();
+        int runs = DEFAULT_RUNS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double simSeconds = Benchmark.DEFAULT_SIM_SECONDS;
+        boolean saveText = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case RUNS_OPTION -> runs = Integer.parseInt(args[++i]);
+                case THREADS_OPTION -> threads = Integer.parseInt(args[++i]);
+                case Benchmark.SIM_SECONDS_OPTION -> simSeconds = Double.parseDouble(args[++i]);
+                case SAVE_TEXT_OPTION -> saveText = true;
+                default -> worldArgs.add(args[i]);
+            }
+        }
+
+        VirtualWorld settings = new VirtualWorld();
+        settings.parseCommandLine(worldArgs.toArray(new String[0]));
+        settings.loadImages(VirtualWorld.IMAGE_LIST_FILE_NAME);
+
+        String save = settings.loadFile;
+        if (!saveText) {
+            try {
+                save = Files.readString(Path.of(settings.loadFile), StandardCharsets.UTF_8);
+            } catch (IOException | InvalidPathException e) {
+                throw new IllegalArgumentException("cannot read save file " + settings.loadFile, e);
+            }
+        }
+
+        Summary summary = new Summary();
+        new MonteCarlo(save, simSeconds, settings.imageStore, settings).run(runs, threads, summary);
+        System.out.print(summary.report());
+    }
+}
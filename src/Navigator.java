@@ -0,0 +1,563 @@
+import java.util.*;
+
+/**
+ * Hierarchical pathfinding (HPA*) over the occupancy grid.
+ *
+ * The grid is cut into square clusters. Wherever a run of open cells
+ * crosses the border between two clusters, one or two transitions are
+ * placed on it, and the step counts between the transitions inside each
+ * cluster form an abstract graph. A query searches that graph, and the
+ * resulting route is refined one cluster at a time as the agent walks
+ * it, so every query and every step touches a bounded number of cells
+ * however large the map is.
+ *
+ * As in FlowField, only stationary entities block the graph; dudes and
+ * fairies are checked when a step is taken.
+ *
+ * A query that finds no route is remembered, per cluster and region of
+ * the start and of the goal, until the graph next changes, so agents
+ * walled in from their goal do not search again on every step. A search
+ * cut short by SEARCH_LIMIT proves nothing, so it is not remembered and
+ * the agent takes a greedy step instead.
+ */
+public final class Navigator {
+    public static final int CLUSTER_SIZE = 10;
+    public static final int MAX_ENTRANCE_WIDTH = 6;
+    public static final int SEARCH_LIMIT = 4096;
+
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    // regions per cluster in a failure key; a cluster has well under this many transitions
+    private static final int REGIONS = 64;
+    private static final int[] STEP_X = {-1, 1, 0, 0};
+    private static final int[] STEP_Y = {0, 0, -1, 1};
+
+    private final WorldModel world;
+    private final boolean stumpsPassable;
+    private final int numRows;
+    private final int numCols;
+    private final int clusterRows;
+    private final int clusterCols;
+    private final Cluster[] clusters;
+    // clusters to rebuild before the next query, listed once each
+    private final boolean[] dirty;
+    private final int[] dirtyList;
+    private int dirtyCount;
+    // set when the last plan stopped at SEARCH_LIMIT
+    private boolean gaveUp;
+    private final Map<Entity, Route> routes;
+    private final Set<Long> failures;
+
+    // searches of the abstract graph run so far
+    public int searches;
+
+    // scratch space for searches inside a single cluster
+    private final int[] distance;
+    private final int[] parent;
+    private final int[] queue;
+
+    // scratch space for searches of the abstract graph, kept between queries
+    private final Map<Integer, Integer> best;
+    private final Map<Integer, Integer> previous;
+    private long[] open;
+    private int openSize;
+
+    /*
+       The transitions inside one cluster and the steps between them.
+       A cell on a corner may appear twice, once per border.
+     */
+    private static final class Cluster {
+        private int[] nodes;
+        private int[] partners;
+        private int[][] cost;
+    }
+
+    /*
+       A cached path: the abstract waypoints, ending at the goal, and the
+       refined cells towards the current waypoint.
+     */
+    private static final class Route {
+        private final int goal;
+        private final int[] waypoints;
+        private int waypoint;
+        private int[] steps;
+        private int step;
+        private int position;
+
+        private Route(int goal, int[] waypoints, int position) {
+            this.goal = goal;
+            this.waypoints = waypoints;
+            this.waypoint = -1;
+            this.steps = new int[0];
+            this.step = 0;
+            this.position = position;
+        }
+    }
+
+    /*
+       stumpsPassable is true for dudes, which may walk over stumps.
+       Builds the whole abstract graph up front.
+     */
+    public Navigator(WorldModel world, boolean stumpsPassable) {
+        this.world = world;
+        this.stumpsPassable = stumpsPassable;
+        this.numRows = world.numRows;
+        this.numCols = world.numCols;
+        this.clusterRows = (this.numRows + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+        this.clusterCols = (this.numCols + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+        this.clusters = new Cluster[this.clusterRows * this.clusterCols];
+        this.dirty = new boolean[this.clusters.length];
+        this.dirtyList = new int[this.clusters.length];
+        this.routes = new HashMap<>();
+        this.failures = new HashSet<>();
+        this.best = new HashMap<>();
+        this.previous = new HashMap<>();
+        this.open = new long[64];
+        this.distance = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+        this.parent = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+        this.queue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+
+        for (int k = 0; k < this.clusters.length; k++) {
+            this.clusters[k] = new Cluster();
+            buildCluster(k);
+        }
+    }
+
+    /*
+       Records that the cell's passability may have changed. The cluster
+       and its neighbours, which share its border transitions, are rebuilt
+       before the next query.
+     */
+    public void cellChanged(long pos) {
+        int x = Point.x(pos);
+        int y = Point.y(pos);
+        if (inBounds(x, y)) {
+            int k = clusterOf(cell(x, y));
+            int cx = k % this.clusterCols;
+            int cy = k / this.clusterCols;
+            markDirty(k);
+            if (cx > 0) markDirty(k - 1);
+            if (cx + 1 < this.clusterCols) markDirty(k + 1);
+            if (cy > 0) markDirty(k - this.clusterCols);
+            if (cy + 1 < this.clusterRows) markDirty(k + this.clusterCols);
+        }
+    }
+
+    private void markDirty(int k) {
+        if (!this.dirty[k]) {
+            this.dirty[k] = true;
+            this.dirtyList[this.dirtyCount++] = k;
+        }
+    }
+
+    public void forget(Entity agent) {
+        this.routes.remove(agent);
+    }
+
+    /*
+       The agent's next cell on a path from pos to the goal cell, or pos
+       itself if there is no path or the way is blocked right now. If the
+       search gave up, the agent steps greedily toward the goal.
+     */
+    public long nextStep(Entity agent, long pos, long goal) {
+        repair();
+        int position = cell(Point.x(pos), Point.y(pos));
+        int target = cell(Point.x(goal), Point.y(goal));
+
+        Route route = this.routes.get(agent);
+        int next = route != null && route.goal == target ? follow(route, position) : -1;
+        if (next < 0) {
+            route = plan(position, target);
+            next = route == null ? -1 : follow(route, position);
+            if (next < 0) {
+                this.routes.remove(agent);
+                return route == null && this.gaveUp ? greedyStep(pos, goal) : pos;
+            }
+            this.routes.put(agent, route);
+        }
+
+        if (next == position || !canEnter(this.world.getOccupancyCell(next % this.numCols, next / this.numCols))) {
+            return pos;
+        }
+        return Point.pack(next % this.numCols, next / this.numCols);
+    }
+
+    /*
+       Advances the route to the agent's position and returns the next
+       cell to enter, the position itself once the goal is adjacent, or
+       -1 if the route no longer fits the grid.
+     */
+    private int follow(Route route, int position) {
+        if (route.step < route.steps.length && route.steps[route.step] == position) {
+            route.step++;
+        } else if (position != route.position) {
+            return -1;
+        }
+        route.position = position;
+
+        while (route.step == route.steps.length) {
+            if (route.waypoint + 1 == route.waypoints.length) {
+                return position;
+            }
+            int to = route.waypoints[++route.waypoint];
+            int[] steps = clusterOf(position) != clusterOf(to) ? new int[]{to} : refine(clusterOf(position), position, to);
+            if (steps == null) {
+                return -1;
+            }
+            if (to == route.goal) {
+                steps = Arrays.copyOf(steps, steps.length - 1);
+            }
+            route.steps = steps;
+            route.step = 0;
+        }
+
+        int next = route.steps[route.step];
+        return isPassable(next) ? next : -1;
+    }
+
+    /*
+       Searches the abstract graph from start to the goal cell, with start
+       and goal joined to the transitions of their own clusters.
+     */
+    private Route plan(int start, int goal) {
+        this.gaveUp = false;
+        int startCluster = clusterOf(start);
+        int goalCluster = clusterOf(goal);
+        if (startCluster == goalCluster && refine(startCluster, start, goal) != null) {
+            return new Route(goal, new int[]{goal}, start);
+        }
+
+        Cluster last = this.clusters[goalCluster];
+        int[] goalCost = new int[last.nodes.length];
+        search(goalCluster, goal, -1);
+        for (int i = 0; i < last.nodes.length; i++) {
+            goalCost[i] = this.distance[local(goalCluster, last.nodes[i])];
+        }
+        int goalRegion = region(goalCluster);
+        search(startCluster, start, -1);
+        long failure = ((long) startCluster * this.clusters.length + goalCluster) * REGIONS * REGIONS
+                + (long) region(startCluster) * REGIONS + goalRegion;
+        if (this.failures.contains(failure)) {
+            return null;
+        }
+
+        Map<Integer, Integer> best = this.best;
+        Map<Integer, Integer> previous = this.previous;
+        this.searches++;
+        best.clear();
+        previous.clear();
+        this.openSize = 0;
+        best.put(start, 0);
+        push(heuristic(start, goal), start);
+
+        int expanded = 0;
+        while (this.openSize > 0 && expanded < SEARCH_LIMIT) {
+            long entry = pop();
+            int node = (int) entry;
+            int cost = best.get(node);
+            if (entry >>> 32 != cost + heuristic(node, goal)) {
+                continue;
+            }
+            if (node == goal) {
+                return new Route(goal, waypoints(previous, start, goal), start);
+            }
+            expanded++;
+
+            int k = clusterOf(node);
+            Cluster cluster = this.clusters[k];
+            if (node == start) {
+                search(k, start, -1);
+                for (int nodeIndex = 0; nodeIndex < cluster.nodes.length; nodeIndex++) {
+                    int steps = this.distance[local(k, cluster.nodes[nodeIndex])];
+                    if (steps != UNREACHABLE) {
+                        relax(best, previous, node, cluster.nodes[nodeIndex], cost + steps, goal);
+                    }
+                }
+            }
+            for (int i = 0; i < cluster.nodes.length; i++) {
+                if (cluster.nodes[i] != node) {
+                    continue;
+                }
+                relax(best, previous, node, cluster.partners[i], cost + 1, goal);
+                for (int j = 0; j < cluster.nodes.length; j++) {
+                    if (cluster.cost[i][j] != UNREACHABLE && cluster.nodes[j] != node) {
+                        relax(best, previous, node, cluster.nodes[j], cost + cluster.cost[i][j], goal);
+                    }
+                }
+                if (k == goalCluster && goalCost[i] != UNREACHABLE) {
+                    relax(best, previous, node, goal, cost + goalCost[i], goal);
+                }
+            }
+        }
+        if (this.openSize == 0) {
+            this.failures.add(failure);
+        } else {
+            this.gaveUp = true;
+        }
+        return null;
+    }
+
+    /*
+       Which part of cluster k the cell last searched from lies in: the
+       first transition it reaches, or REGIONS - 1 if it reaches none.
+     */
+    private int region(int k) {
+        Cluster cluster = this.clusters[k];
+        for (int i = 0; i < cluster.nodes.length && i < REGIONS - 1; i++) {
+            if (this.distance[local(k, cluster.nodes[i])] != UNREACHABLE) {
+                return i;
+            }
+        }
+        return REGIONS - 1;
+    }
+
+    private void relax(Map<Integer, Integer> best, Map<Integer, Integer> previous, int from, int to, int cost, int goal) {
+        Integer known = best.get(to);
+        if (known == null || cost < known) {
+            best.put(to, cost);
+            previous.put(to, from);
+            push(cost + heuristic(to, goal), to);
+        }
+    }
+
+    /*
+       The open list is a binary heap of longs holding the estimated total
+       cost in the high half and the node in the low half.
+     */
+    private void push(long estimate, int node) {
+        if (this.openSize == this.open.length) {
+            this.open = Arrays.copyOf(this.open, this.open.length * 2);
+        }
+        long entry = estimate << 32 | node;
+        int k = this.openSize++;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (this.open[parent] <= entry) {
+                break;
+            }
+            this.open[k] = this.open[parent];
+            k = parent;
+        }
+        this.open[k] = entry;
+    }
+
+    private long pop() {
+        long result = this.open[0];
+        long last = this.open[--this.openSize];
+        int half = this.openSize >>> 1;
+        int k = 0;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            if (child + 1 < this.openSize && this.open[child + 1] < this.open[child]) {
+                child++;
+            }
+            if (last <= this.open[child]) {
+                break;
+            }
+            this.open[k] = this.open[child];
+            k = child;
+        }
+        if (this.openSize > 0) {
+            this.open[k] = last;
+        }
+        return result;
+    }
+
+    private static int[] waypoints(Map<Integer, Integer> previous, int start, int goal) {
+        List<Integer> path = new ArrayList<>();
+        for (int node = goal; node != start; node = previous.get(node)) {
+            path.add(node);
+        }
+        int[] waypoints = new int[path.size()];
+        for (int i = 0; i < waypoints.length; i++) {
+            waypoints[i] = path.get(waypoints.length - 1 - i);
+        }
+        return waypoints;
+    }
+
+    private int heuristic(int from, int to) {
+        return Math.abs(from % this.numCols - to % this.numCols) + Math.abs(from / this.numCols - to / this.numCols);
+    }
+
+    /*
+       The cells from one cell to another inside cluster k, excluding from
+       and including to, or null if to cannot be reached in the cluster.
+     */
+    private int[] refine(int k, int from, int to) {
+        search(k, from, to);
+        if (this.distance[local(k, to)] == UNREACHABLE) {
+            return null;
+        }
+        int[] steps = new int[this.distance[local(k, to)]];
+        for (int cell = to, i = steps.length - 1; i >= 0; cell = this.parent[local(k, cell)], i--) {
+            steps[i] = cell;
+        }
+        return steps;
+    }
+
+    /*
+       Breadth-first search inside cluster k from source, filling distance
+       and parent for the cluster's cells. The source, and the optional
+       destination, may be entered even when blocked.
+     */
+    private void search(int k, int source, int destination) {
+        int x0 = (k % this.clusterCols) * CLUSTER_SIZE;
+        int y0 = (k / this.clusterCols) * CLUSTER_SIZE;
+        int x1 = Math.min(x0 + CLUSTER_SIZE, this.numCols);
+        int y1 = Math.min(y0 + CLUSTER_SIZE, this.numRows);
+
+        Arrays.fill(this.distance, UNREACHABLE);
+        this.distance[local(k, source)] = 0;
+        this.queue[0] = source;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int cell = this.queue[head++];
+            int x = cell % this.numCols;
+            int y = cell / this.numCols;
+            int next = this.distance[local(k, cell)] + 1;
+            for (int i = 0; i < STEP_X.length; i++) {
+                int nx = x + STEP_X[i];
+                int ny = y + STEP_Y[i];
+                if (nx < x0 || nx >= x1 || ny < y0 || ny >= y1) {
+                    continue;
+                }
+                int neighbour = cell(nx, ny);
+                if (this.distance[local(k, neighbour)] == UNREACHABLE && (neighbour == destination || isPassable(neighbour))) {
+                    this.distance[local(k, neighbour)] = next;
+                    this.parent[local(k, neighbour)] = cell;
+                    this.queue[tail++] = neighbour;
+                }
+            }
+        }
+    }
+
+    private void repair() {
+        if (this.dirtyCount == 0) {
+            return;
+        }
+        for (int i = 0; i < this.dirtyCount; i++) {
+            int k = this.dirtyList[i];
+            buildCluster(k);
+            this.dirty[k] = false;
+        }
+        this.dirtyCount = 0;
+        this.failures.clear();
+    }
+
+    /*
+       Finds the transitions on all four borders of cluster k and the
+       steps between them inside the cluster.
+     */
+    private void buildCluster(int k) {
+        int cx = k % this.clusterCols;
+        int cy = k / this.clusterCols;
+        List<int[]> pairs = new ArrayList<>();
+        if (cx + 1 < this.clusterCols) {
+            addTransitions(k, true, pairs, false);
+        }
+        if (cy + 1 < this.clusterRows) {
+            addTransitions(k, false, pairs, false);
+        }
+        if (cx > 0) {
+            addTransitions(k - 1, true, pairs, true);
+        }
+        if (cy > 0) {
+            addTransitions(k - this.clusterCols, false, pairs, true);
+        }
+
+        Cluster cluster = this.clusters[k];
+        cluster.nodes = new int[pairs.size()];
+        cluster.partners = new int[pairs.size()];
+        for (int i = 0; i < pairs.size(); i++) {
+            cluster.nodes[i] = pairs.get(i)[0];
+            cluster.partners[i] = pairs.get(i)[1];
+        }
+        cluster.cost = new int[pairs.size()][pairs.size()];
+        for (int i = 0; i < pairs.size(); i++) {
+            search(k, cluster.nodes[i], -1);
+            for (int j = 0; j < pairs.size(); j++) {
+                cluster.cost[i][j] = this.distance[local(k, cluster.nodes[j])];
+            }
+        }
+    }
+
+    /*
+       Adds the transitions across cluster k's east (or south) border as
+       {inside, outside} pairs, swapped when building the neighbour.
+     */
+    private void addTransitions(int k, boolean east, List<int[]> pairs, boolean swap) {
+        int x0 = (k % this.clusterCols) * CLUSTER_SIZE;
+        int y0 = (k / this.clusterCols) * CLUSTER_SIZE;
+        int origin = east ? cell(Math.min(x0 + CLUSTER_SIZE, this.numCols) - 1, y0) : cell(x0, Math.min(y0 + CLUSTER_SIZE, this.numRows) - 1);
+        int along = east ? this.numCols : 1;
+        int across = east ? 1 : this.numCols;
+        int length = east ? Math.min(CLUSTER_SIZE, this.numRows - y0) : Math.min(CLUSTER_SIZE, this.numCols - x0);
+
+        int runStart = -1;
+        for (int i = 0; i <= length; i++) {
+            int inside = origin + i * along;
+            boolean open = i < length && isPassable(inside) && isPassable(inside + across);
+            if (open && runStart < 0) {
+                runStart = i;
+            } else if (!open && runStart >= 0) {
+                int runEnd = i - 1;
+                if (runEnd - runStart + 1 > MAX_ENTRANCE_WIDTH) {
+                    addTransition(origin + runStart * along, across, pairs, swap);
+                    addTransition(origin + runEnd * along, across, pairs, swap);
+                } else {
+                    addTransition(origin + (runStart + runEnd) / 2 * along, across, pairs, swap);
+                }
+                runStart = -1;
+            }
+        }
+    }
+
+    private static void addTransition(int inside, int across, List<int[]> pairs, boolean swap) {
+        pairs.add(swap ? new int[]{inside + across, inside} : new int[]{inside, inside + across});
+    }
+
+    private boolean isPassable(int cell) {
+        Entity occupant = this.world.getOccupancyCell(cell % this.numCols, cell / this.numCols);
+        return occupant == null || FlowField.isMobile(occupant.getKind()) || canEnter(occupant);
+    }
+
+    /*
+       One step toward the goal, across first and then down, as agents
+       move without pathfinding.
+     */
+    private long greedyStep(long pos, long goal) {
+        int x = Point.x(pos);
+        int y = Point.y(pos);
+        int horiz = Integer.signum(Point.x(goal) - x);
+        if (horiz != 0 && canEnter(this.world.getOccupancyCell(x + horiz, y))) {
+            return Point.pack(x + horiz, y);
+        }
+        int vert = Integer.signum(Point.y(goal) - y);
+        if (vert != 0 && canEnter(this.world.getOccupancyCell(x, y + vert))) {
+            return Point.pack(x, y + vert);
+        }
+        return pos;
+    }
+
+    private boolean canEnter(Entity occupant) {
+        return occupant == null || this.stumpsPassable && occupant.getKind() == EntityKind.STUMP;
+    }
+
+    private boolean inBounds(int x, int y) {
+        return y >= 0 && y < this.numRows && x >= 0 && x < this.numCols;
+    }
+
+    private int cell(int x, int y) {
+        return y * this.numCols + x;
+    }
+
+    private int clusterOf(int cell) {
+        return (cell / this.numCols / CLUSTER_SIZE) * this.clusterCols + (cell % this.numCols) / CLUSTER_SIZE;
+    }
+
+    private int local(int k, int cell) {
+        int x0 = (k % this.clusterCols) * CLUSTER_SIZE;
+        int y0 = (k / this.clusterCols) * CLUSTER_SIZE;
+        return (cell / this.numCols - y0) * CLUSTER_SIZE + (cell % this.numCols - x0);
+    }
+}
@@ -1,5 +1,8 @@
 /**
  * A simple class representing a location in 2D space.
+ *
+ * Internal paths that would otherwise allocate a Point per step use a
+ * packed long key instead: y in the high 32 bits, x in the low 32 bits.
  */
 public final class Point {
     public final int x;
@@ -10,6 +13,26 @@ public final class Point {
         this.y = y;
     }
 
+    public static long pack(int x, int y) {
+        return ((long) y << 32) | (x & 0xffffffffL);
+    }
+
+    public static int x(long key) {
+        return (int) key;
+    }
+
+    public static int y(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static Point unpack(long key) {
+        return new Point(x(key), y(key));
+    }
+
+    public long pack() {
+        return pack(this.x, this.y);
+    }
+
     public String toString() {
         return "(" + x + "," + y + ")";
     }
@@ -0,0 +1,162 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a world.sav file with the entity lines parsed in parallel.
+ *
+ * The file is streamed through a buffered channel reader. Headers and
+ * backgrounds are read in order as in WorldModel.load, while the lines of
+ * the Entities: section are cut into blocks that are parsed on the common
+ * pool as soon as each block fills. The parsed blocks are then added to
+ * the world in file order in one pass, so the world, the entity order
+ * and the first error reported are the same as for a sequential load.
+ */
+public final class SaveFileParser {
+    public static final int BLOCK_LINES = 4096;
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private final ImageStore imageStore;
+    private final List<Future<Block>> blocks;
+    private String[] pending;
+    private int pendingCount;
+
+    public int lines;
+    public int entityLines;
+    public long elapsedNanos;
+
+    /*
+       The entities parsed from one block, up to the first line that
+       failed to parse, if any. They live in the block's own store until
+       the merge moves them into the world's.
+     */
+    private static final class Block {
+        private final EntityStore store;
+        private final Entity[] entities;
+        private int count;
+        private RuntimeException failure;
+
+        private Block(int size) {
+            this.store = new EntityStore(size);
+            this.entities = new Entity[size];
+        }
+    }
+
+    private SaveFileParser(ImageStore imageStore) {
+        this.imageStore = imageStore;
+        this.blocks = new ArrayList<>();
+        this.pending = new String[BLOCK_LINES];
+    }
+
+    /*
+       Loads the save file into an empty world, which may already have its
+       memory budget set, and returns the parser with its line counts. The
+       report is left in world.loadReport, or attached to the exception as
+       a suppressed one when the load fails.
+     */
+    public static SaveFileParser load(WorldModel world, Path path, ImageStore imageStore, Background defaultBackground) throws IOException {
+        SaveFileParser parser = new SaveFileParser(imageStore);
+        long start = System.nanoTime();
+        boolean backgrounds;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            Iterator<String> lines = reader.lines().iterator();
+            Iterator<String> counted = new Iterator<>() {
+                public boolean hasNext() {
+                    return lines.hasNext();
+                }
+
+                public String next() {
+                    parser.lines++;
+                    return lines.next();
+                }
+            };
+            backgrounds = world.parseSaveFile(counted, imageStore, parser::add);
+        }
+        parser.submit();
+        try {
+            parser.merge(world);
+        } catch (RuntimeException e) {
+            parser.elapsedNanos = System.nanoTime() - start;
+            e.addSuppressed(new IllegalStateException(path + ": " + parser.report()));
+            throw e;
+        }
+        world.finishLoad(backgrounds, defaultBackground);
+        parser.elapsedNanos = System.nanoTime() - start;
+        world.loadReport = parser.report();
+        return parser;
+    }
+
+    public double linesPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : this.lines * 1e9 / this.elapsedNanos;
+    }
+
+    public String report() {
+        return String.format("parsed %d lines (%d entities) in %.1f ms, %.0f lines/s",
+                this.lines, this.entityLines, this.elapsedNanos / 1e6, linesPerSecond());
+    }
+
+    private void add(String line) {
+        this.entityLines++;
+        this.pending[this.pendingCount++] = line;
+        if (this.pendingCount == BLOCK_LINES) {
+            submit();
+        }
+    }
+
+    private void submit() {
+        if (this.pendingCount == 0) {
+            return;
+        }
+        String[] lines = this.pending;
+        int count = this.pendingCount;
+        this.blocks.add(ForkJoinPool.commonPool().submit(() -> parse(lines, count)));
+        this.pending = new String[BLOCK_LINES];
+        this.pendingCount = 0;
+    }
+
+    private Block parse(String[] lines, int count) {
+        Block block = new Block(count);
+        try {
+            while (block.count < count) {
+                block.entities[block.count] = WorldModel.parseEntity(lines[block.count], block.store, this.imageStore);
+                block.count++;
+            }
+        } catch (RuntimeException e) {
+            block.failure = e;
+        }
+        return block;
+    }
+
+    /*
+       Adds the blocks in file order. A block's parse error is thrown only
+       after the entities before it are added, as a sequential load would.
+     */
+    private void merge(WorldModel world) {
+        for (Future<Block> future : this.blocks) {
+            Block block;
+            try {
+                block = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while loading", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            for (int i = 0; i < block.count; i++) {
+                world.tryAddEntity(block.entities[i]);
+            }
+            if (block.failure != null) {
+                throw block.failure;
+            }
+        }
+    }
+}
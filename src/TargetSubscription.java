@@ -0,0 +1,59 @@
+import java.util.*;
+
+/**
+ * An agent's cached answer to findNearest for a fixed list of kinds.
+ *
+ * Alongside the target it keeps a bound: no other entity of the watched
+ * kinds is closer to the agent than that. The target stays the answer
+ * while it is strictly closer than the bound. WorldModel shrinks the
+ * bound as the agent moves, and drops the cache when the target leaves
+ * or another watched entity appears inside the bound.
+ */
+public final class TargetSubscription {
+    private static final double EPSILON = 1e-9;
+
+    public final Entity agent;
+    public final List<EntityKind> kinds;
+    public Entity target;
+    public double bound;
+    public boolean valid;
+
+    public TargetSubscription(Entity agent, List<EntityKind> kinds) {
+        this.agent = agent;
+        this.kinds = kinds;
+        this.valid = false;
+    }
+
+    public void update(EntityIndex.Nearest nearest) {
+        this.target = nearest.entity;
+        this.bound = nearest.bound();
+        this.valid = true;
+    }
+
+    public boolean isCurrent() {
+        return this.valid && (this.target == null || distanceTo(this.target.getX(), this.target.getY()) < this.bound - EPSILON);
+    }
+
+    /*
+       Called when an entity of a watched kind arrives at (x, y).
+     */
+    public void entityArrived(Entity entity, int x, int y) {
+        if (entity != this.agent && distanceTo(x, y) <= this.bound + EPSILON) {
+            this.valid = false;
+        }
+    }
+
+    public void entityLeft(Entity entity) {
+        if (entity == this.target) {
+            this.valid = false;
+        }
+    }
+
+    public void agentMoved(double distance) {
+        this.bound -= distance;
+    }
+
+    private double distanceTo(int x, int y) {
+        return Math.hypot(x - this.agent.getX(), y - this.agent.getY());
+    }
+}
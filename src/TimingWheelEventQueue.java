@@ -0,0 +1,214 @@
+import java.util.ArrayDeque;
+import java.util.function.Predicate;
+
+/**
+ * A hierarchical timing wheel that orders events by integer ticks
+ * (microseconds) and breaks ties by insertion sequence.
+ *
+ * Each level has 256 slots; a slot at level L spans 256^L ticks. An event
+ * is kept at the lowest level whose current block contains its tick, and
+ * is cascaded one level down when the wheel advances into its slot, so
+ * insertion is O(1) and each event is moved at most LEVELS times.
+ */
+public final class TimingWheelEventQueue implements EventQueue {
+    public static final long TICKS_PER_SECOND = 1_000_000L;
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    private final ArrayDeque<Event>[][] wheels;
+    private final long[][] occupied;
+    private final ArrayDeque<Event> overflow;
+    private long now;
+    private long nextSequence;
+    private int size;
+    private Event next;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheelEventQueue() {
+        this.wheels = new ArrayDeque[LEVELS][SLOTS];
+        this.occupied = new long[LEVELS][SLOTS / Long.SIZE];
+        for (ArrayDeque<Event>[] wheel : this.wheels) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[slot] = new ArrayDeque<>();
+            }
+        }
+        this.overflow = new ArrayDeque<>();
+        this.now = 0;
+        this.nextSequence = 0;
+        this.size = 0;
+    }
+
+    public static long toTicks(double time) {
+        return Math.round(time * TICKS_PER_SECOND);
+    }
+
+    public void add(Event event) {
+        // the wheel never runs ahead of the scheduler's clock, so this only
+        // guards against callers scheduling into the past
+        event.tick = Math.max(toTicks(event.time), this.now);
+        event.time = (double) event.tick / TICKS_PER_SECOND;
+        event.sequence = this.nextSequence++;
+        place(event);
+        this.size++;
+
+        if (this.next != null && event.tick < this.next.tick) {
+            this.next = event;
+        }
+    }
+
+    public Event peek() {
+        if (this.next == null && this.size > 0) {
+            this.next = findNext();
+        }
+        return this.next;
+    }
+
+    public Event poll() {
+        Event event = peek();
+        if (event != null) {
+            advanceTo(event.tick);
+            this.wheels[0][slot(event.tick, 0)].pollFirst();
+            markIfEmpty(0, slot(event.tick, 0));
+            this.size--;
+            this.next = null;
+        }
+        return event;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean removeIf(Predicate<Event> filter) {
+        int before = this.size;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                ArrayDeque<Event> events = this.wheels[level][slot];
+                if (!events.isEmpty()) {
+                    int count = events.size();
+                    events.removeIf(filter);
+                    this.size -= count - events.size();
+                    markIfEmpty(level, slot);
+                }
+            }
+        }
+        int count = this.overflow.size();
+        this.overflow.removeIf(filter);
+        this.size -= count - this.overflow.size();
+        this.next = null;
+        return this.size != before;
+    }
+
+    private static int slot(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+    }
+
+    /*
+       The lowest level whose current block (relative to now) contains the tick.
+     */
+    private int levelOf(long tick) {
+        long differing = tick ^ this.now;
+        if (differing == 0) {
+            return 0;
+        }
+        return (Long.SIZE - 1 - Long.numberOfLeadingZeros(differing)) / SLOT_BITS;
+    }
+
+    private void place(Event event) {
+        int level = levelOf(event.tick);
+        if (level >= LEVELS) {
+            this.overflow.addLast(event);
+        } else {
+            int slot = slot(event.tick, level);
+            this.wheels[level][slot].addLast(event);
+            this.occupied[level][slot / Long.SIZE] |= 1L << slot;
+        }
+    }
+
+    private void markIfEmpty(int level, int slot) {
+        if (this.wheels[level][slot].isEmpty()) {
+            this.occupied[level][slot / Long.SIZE] &= ~(1L << slot);
+        }
+    }
+
+    /*
+       First occupied slot at or after the given slot, or -1.
+     */
+    private int nextOccupied(int level, int from) {
+        for (int word = from / Long.SIZE; word < this.occupied[level].length; word++) {
+            long bits = this.occupied[level][word];
+            if (word == from / Long.SIZE) {
+                bits &= -1L << from;
+            }
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    /*
+       Finds the earliest event without moving the wheel, so that events
+       scheduled before it is polled can still be placed relative to now.
+     */
+    private Event findNext() {
+        int slot = nextOccupied(0, slot(this.now, 0));
+        if (slot >= 0) {
+            return this.wheels[0][slot].peekFirst();
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            int current = slot(this.now, level);
+            slot = current == SLOT_MASK ? -1 : nextOccupied(level, current + 1);
+            if (slot >= 0) {
+                return earliest(this.wheels[level][slot]);
+            }
+        }
+        return earliest(this.overflow);
+    }
+
+    private static Event earliest(ArrayDeque<Event> events) {
+        Event earliest = null;
+        for (Event event : events) {
+            if (earliest == null || event.tick < earliest.tick) {
+                earliest = event;
+            }
+        }
+        return earliest;
+    }
+
+    /*
+       Moves now forward to the given tick, cascading each slot the wheel
+       enters on the way. All events before the tick must already be gone.
+     */
+    private void advanceTo(long tick) {
+        int level = levelOf(tick);
+        while (level > 0) {
+            if (level >= LEVELS) {
+                this.now = tick & -(1L << (SLOT_BITS * LEVELS));
+                ArrayDeque<Event> events = new ArrayDeque<>(this.overflow);
+                this.overflow.clear();
+                for (Event event : events) {
+                    place(event);
+                }
+            } else {
+                this.now = tick & -(1L << (SLOT_BITS * level));
+                int slot = slot(tick, level);
+                ArrayDeque<Event> events = this.wheels[level][slot];
+                int count = events.size();
+                for (int i = 0; i < count; i++) {
+                    place(events.pollFirst());
+                }
+                markIfEmpty(level, slot);
+            }
+            level = levelOf(tick);
+        }
+        this.now = tick;
+    }
+}
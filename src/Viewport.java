@@ -15,14 +15,23 @@ public final class Viewport {
     }
 
     public boolean contains(Point p) {
-        return p.y >= this.row && p.y < this.row + this.numRows && p.x >= this.col && p.x < this.col + this.numCols;
+        return contains(p.pack());
     }
 
-    public Point viewportToWorld(int col, int row) {
-        return new Point(col + this.col, row + this.row);
+    public boolean contains(long p) {
+        int x = Point.x(p);
+        int y = Point.y(p);
+        return y >= this.row && y < this.row + this.numRows && x >= this.col && x < this.col + this.numCols;
     }
 
-    public Point worldToViewport(int col, int row) {
-        return new Point(col - this.col, row - this.row);
+    /*
+       Both conversions return packed Point keys; see Point.pack.
+     */
+    public long viewportToWorld(int col, int row) {
+        return Point.pack(col + this.col, row + this.row);
+    }
+
+    public long worldToViewport(int col, int row) {
+        return Point.pack(col - this.col, row - this.row);
     }
 }
@@ -1,12 +1,15 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.*;
 
 import processing.core.*;
 
 public final class VirtualWorld extends PApplet {
-    private static String[] ARGS;
-
     public static final int VIEW_WIDTH = 640;
     public static final int VIEW_HEIGHT = 480;
     public static final int TILE_WIDTH = 32;
@@ -16,6 +19,7 @@ public final class VirtualWorld extends PApplet {
     public static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
 
     public static final String IMAGE_LIST_FILE_NAME = "imagelist";
+    public static final String IMAGE_CACHE_DIR = ".imagecache";
     public static final String DEFAULT_IMAGE_NAME = "background_default";
     public static final int DEFAULT_IMAGE_COLOR = 0x808080;
 
@@ -25,10 +29,38 @@ public final class VirtualWorld extends PApplet {
     public static final double FAST_SCALE = 0.5;
     public static final double FASTER_SCALE = 0.25;
     public static final double FASTEST_SCALE = 0.10;
+    public static final String WHEEL_FLAG = "-wheel";
+    public static final String ANALYTIC_FLAG = "-analytic";
+    public static final String BENCH_FLAG = "-bench";
+    public static final String MONTE_CARLO_FLAG = "-montecarlo";
+    public static final String SEED_FLAG = "-seed";
+    public static final String FLOW_FIELD_FLAG = "-flowfield";
+    public static final String PATHFINDING_FLAG = "-hpa";
+    public static final String ATLAS_FLAG = "-atlas";
+    public static final String CHUNK_BUDGET_FLAG = "-chunkbudget";
+    public static final String CHECKPOINT_FLAG = "-checkpoint";
+    public static final String RESUME_FLAG = "-resume";
+    public static final String BACKGROUND_CACHE_FLAG = "-bgcache";
+    public static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
 
     public String loadFile = "world.sav";
     public long startTimeMillis = 0;
     public double timeScale = 1.0;
+    public boolean timingWheel = false;
+    public boolean analyticAnimation = false;
+    public boolean seeded = false;
+    public long seed = 0;
+    public boolean flowFields = false;
+    public boolean pathfinding = false;
+    public boolean atlas = false;
+    public long memoryBudget = 0;
+    public long backgroundBudget = BackgroundCache.DEFAULT_BUDGET;
+    public String checkpointFile = null;
+    public String resumeFile = null;
+    public Checkpoint checkpoint;
+    public long lastCheckpointMillis;
+    // set for runs without a window, which never decode images
+    public boolean headless = false;
 
     public ImageStore imageStore;
     public WorldModel world;
@@ -41,25 +73,64 @@ public final class VirtualWorld extends PApplet {
 
     /*
        Processing entry point for "sketch" setup.
+       Command line flags have already been applied by parseCommandLine.
     */
     public void setup() {
-        parseCommandLine(ARGS);
         loadImages(IMAGE_LIST_FILE_NAME);
-        loadWorld(loadFile, this.imageStore);
+        if (atlas && !headless) {
+            this.imageStore.buildAtlas();
+        }
+        if (resumeFile != null) {
+            resumeWorld(resumeFile, this.imageStore);
+        } else {
+            loadWorld(loadFile, this.imageStore);
+        }
 
-        this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH, TILE_HEIGHT);
-        this.scheduler = new EventScheduler();
-        this.startTimeMillis = System.currentTimeMillis();
-        this.scheduleActions(world, scheduler, imageStore);
+        this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH, TILE_HEIGHT, backgroundBudget);
+        if (!headless) {
+            this.view.prefetchImages();
+        }
+        if (resumeFile == null) {
+            this.scheduler = createScheduler();
+            scheduleActions(world, scheduler, imageStore);
+        }
+        // a resumed world's clock does not start at zero
+        this.startTimeMillis = System.currentTimeMillis() - (long) (scheduler.currentTime * 1000);
+        if (checkpointFile != null) {
+            this.checkpoint = new Checkpoint(Path.of(checkpointFile));
+            writeCheckpoint();
+        }
+    }
+
+    public EventScheduler createScheduler() {
+        EventScheduler scheduler = new EventScheduler(timingWheel ? new TimingWheelEventQueue() : new HeapEventQueue());
+        scheduler.analyticAnimation = analyticAnimation;
+        return scheduler;
     }
 
     public void draw() {
         double appTime = (System.currentTimeMillis() - startTimeMillis) * 0.001;
         double frameTime = (appTime - scheduler.currentTime)/timeScale;
         this.update(frameTime);
+        if (this.checkpoint != null && System.currentTimeMillis() - this.lastCheckpointMillis >= CHECKPOINT_INTERVAL_MILLIS) {
+            writeCheckpoint();
+        }
         view.drawViewport();
     }
 
+    /*
+       Saves the world and its pending events: a delta of what changed
+       since the last checkpoint, with a full rewrite now and then.
+    */
+    public void writeCheckpoint() {
+        try {
+            this.checkpoint.write(this.world, this.scheduler);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.lastCheckpointMillis = System.currentTimeMillis();
+    }
+
     public void update(double frameTime){
         scheduler.updateOnTime(frameTime);
     }
@@ -73,19 +144,33 @@ public final class VirtualWorld extends PApplet {
         Optional<Entity> entityOptional = world.getOccupant(pressed);
         if (entityOptional.isPresent()) {
             Entity entity = entityOptional.get();
-            System.out.println(entity.id + ": " + entity.kind + " : " + entity.health);
+            System.out.println(entity.getId() + ": " + entity.getKind() + " : " + entity.getHealth());
         }
 
     }
 
-    public void scheduleActions(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        for (Entity entity : world.entities) {
-            scheduler.scheduleActions(entity, world, imageStore);
+    public static void scheduleActions(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
+        scheduler.scheduleActions(world.entities, world, imageStore);
+    }
+
+    /*
+       Adds a batch of new entities to a running world and schedules the
+       actions of those that landed inside it in one batch. If any cell is
+       taken, nothing is added or scheduled.
+     */
+    public static void spawn(WorldModel world, EventScheduler scheduler, ImageStore imageStore, List<Entity> entities) {
+        world.addEntities(entities);
+        List<Entity> added = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            if (world.entities.contains(entity)) {
+                added.add(entity);
+            }
         }
+        scheduler.scheduleActions(added, world, imageStore);
     }
 
     private Point mouseToPoint() {
-        return view.viewport.viewportToWorld(mouseX / TILE_WIDTH, mouseY / TILE_HEIGHT);
+        return Point.unpack(view.viewport.viewportToWorld(mouseX / TILE_WIDTH, mouseY / TILE_HEIGHT));
     }
 
     public void keyPressed() {
@@ -119,6 +204,7 @@ public final class VirtualWorld extends PApplet {
         this.imageStore = new ImageStore(createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
         try {
             Scanner in = new Scanner(new File(filename));
+            imageStore.cacheDir = Path.of(IMAGE_CACHE_DIR);
             imageStore.loadImages(in,this);
         } catch (FileNotFoundException e) {
             System.err.println(e.getMessage());
@@ -126,37 +212,151 @@ public final class VirtualWorld extends PApplet {
     }
 
     public void loadWorld(String file, ImageStore imageStore) {
+        this.world = createWorld(file, imageStore, memoryBudget);
+        if (this.world.loadReport != null) {
+            System.err.println(file + ": " + this.world.loadReport);
+        }
+        if (seeded) {
+            this.world.setSeed(seed);
+        }
+        if (flowFields) {
+            this.world.enableFlowFields();
+        }
+        if (pathfinding) {
+            this.world.enablePathfinding();
+        }
+    }
+
+    /*
+       Restores the world and its scheduled events from a checkpoint file
+       in place of loading a save.
+    */
+    public void resumeWorld(String file, ImageStore imageStore) {
         this.world = new WorldModel();
+        this.world.memoryBudget = memoryBudget;
+        this.scheduler = createScheduler();
         try {
-            Scanner in = new Scanner(new File(file));
-            world.load(in, imageStore, createDefaultBackground(imageStore));
-        } catch (FileNotFoundException e) {
-            Scanner in = new Scanner(file);
-            world.load(in, imageStore, createDefaultBackground(imageStore));
+            Checkpoint.resume(Path.of(file), this.world, this.scheduler, imageStore);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (flowFields) {
+            this.world.enableFlowFields();
+        }
+        if (pathfinding) {
+            this.world.enablePathfinding();
         }
     }
 
+    /*
+       Loads a world from the named save file or binary snapshot, or from
+       the argument itself when no such file exists.
+    */
+    public static WorldModel createWorld(String file, ImageStore imageStore) {
+        return createWorld(file, imageStore, 0);
+    }
+
+    /*
+       memoryBudget caps the bytes of grid chunks kept in memory; 0 keeps
+       them all.
+    */
+    public static WorldModel createWorld(String file, ImageStore imageStore, long memoryBudget) {
+        WorldModel world = new WorldModel();
+        world.memoryBudget = memoryBudget;
+        try {
+            Path path = Path.of(file);
+            if (WorldSnapshot.isSnapshot(path)) {
+                WorldSnapshot.load(world, path, imageStore);
+                return world;
+            }
+            if (Files.isRegularFile(path)) {
+                SaveFileParser.load(world, path, imageStore, createDefaultBackground(imageStore));
+                return world;
+            }
+        } catch (InvalidPathException e) {
+            // not a file name: the argument is the save text itself
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        world.load(new Scanner(file), imageStore, createDefaultBackground(imageStore));
+        return world;
+    }
+
     public void parseCommandLine(String[] args) {
-        for (String arg : args) {
-            switch (arg) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
                 case FAST_FLAG -> timeScale = Math.min(FAST_SCALE, timeScale);
                 case FASTER_FLAG -> timeScale = Math.min(FASTER_SCALE, timeScale);
                 case FASTEST_FLAG -> timeScale = Math.min(FASTEST_SCALE, timeScale);
-                default -> loadFile = arg;
+                case WHEEL_FLAG -> timingWheel = true;
+                case ANALYTIC_FLAG -> analyticAnimation = true;
+                case FLOW_FIELD_FLAG -> flowFields = true;
+                case PATHFINDING_FLAG -> pathfinding = true;
+                case ATLAS_FLAG -> atlas = true;
+                case CHUNK_BUDGET_FLAG -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(CHUNK_BUDGET_FLAG + " requires a value in megabytes");
+                    }
+                    memoryBudget = Long.parseLong(args[++i]) << 20;
+                }
+                case BACKGROUND_CACHE_FLAG -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(BACKGROUND_CACHE_FLAG + " requires a value in megabytes");
+                    }
+                    backgroundBudget = Long.parseLong(args[++i]) << 20;
+                }
+                case CHECKPOINT_FLAG -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(CHECKPOINT_FLAG + " requires a file");
+                    }
+                    checkpointFile = args[++i];
+                }
+                case RESUME_FLAG -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(RESUME_FLAG + " requires a file");
+                    }
+                    resumeFile = args[++i];
+                }
+                case SEED_FLAG -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException(SEED_FLAG + " requires a value");
+                    }
+                    seed = Long.parseLong(args[++i]);
+                    seeded = true;
+                }
+                default -> loadFile = args[i];
             }
         }
     }
 
     public static void main(String[] args) {
-        VirtualWorld.ARGS = args;
-        PApplet.main(VirtualWorld.class);
+        if (args.length > 0 && args[0].equals(BENCH_FLAG)) {
+            Benchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals(MONTE_CARLO_FLAG)) {
+            MonteCarlo.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        VirtualWorld sketch = new VirtualWorld();
+        sketch.parseCommandLine(args);
+        PApplet.runSketch(new String[]{VirtualWorld.class.getName()}, sketch);
     }
 
-    public static List<String> headlessMain(String[] args, double lifetime){
-        VirtualWorld.ARGS = args;
-
+    /*
+       Loads and schedules a world without opening a Processing window.
+     */
+    public static VirtualWorld headless(String[] args) {
         VirtualWorld virtualWorld = new VirtualWorld();
+        virtualWorld.headless = true;
+        virtualWorld.parseCommandLine(args);
         virtualWorld.setup();
+        return virtualWorld;
+    }
+
+    public static List<String> headlessMain(String[] args, double lifetime){
+        VirtualWorld virtualWorld = headless(args);
         virtualWorld.update(lifetime);
 
         return virtualWorld.world.log();
@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The world's background and occupancy grids, split into square chunks
+ * that are created on first use.
+ *
+ * Backgrounds are stored as two-byte indices into a palette of shared
+ * Background prototypes, one per tile id, rather than an object per cell.
+ *
+ * With a memory budget, chunks that hold no dudes or fairies and are not
+ * in view are evicted least recently used first. Their backgrounds are
+ * written to a backing file and read back when the chunk is next touched.
+ * Their stationary occupants, which live on in the world's entities and
+ * index anyway, are parked in a short list sorted by cell, so occupancy
+ * lookups on an evicted chunk need no disk access.
+ */
+public final class WorldChunks {
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    public static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+    // rough resident size of a chunk: a palette index and a reference per cell
+    public static final long CHUNK_BYTES = (long) CHUNK_CELLS * (Short.BYTES + Integer.BYTES);
+    public static final short NO_TILE = -1;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    public final int numRows;
+    public final int numCols;
+    public Background fallback;
+
+    private final int chunkRows;
+    private final int chunkCols;
+    private final Chunk[] chunks;
+    private final boolean[] stored;
+    // stationary occupants of evicted chunks and their cells, by chunk index
+    private final Entity[][] parked;
+    private final short[][] parkedCells;
+    private final int budget;
+    private int resident;
+    // resident chunks, least recently used first; kept only with a budget
+    private final LinkedHashMap<Chunk, Chunk> recent;
+    private Chunk lastUsed;
+
+    private int viewCol0;
+    private int viewRow0;
+    private int viewCol1 = -1;
+    private int viewRow1 = -1;
+
+    private final Map<String, Short> paletteIndex;
+    private final List<Background> palette;
+    private FileChannel backing;
+    private ByteBuffer scratch;
+
+    private static final class Chunk {
+        private final int index;
+        private final short[] tiles = new short[CHUNK_CELLS];
+        private final Entity[] occupancy = new Entity[CHUNK_CELLS];
+        private int entityCount;
+        // dudes and fairies, which pin the chunk
+        private int mobileCount;
+
+        private Chunk(int index) {
+            this.index = index;
+            Arrays.fill(this.tiles, NO_TILE);
+        }
+    }
+
+    /*
+       budget is the number of chunks to keep resident, or 0 for no limit.
+     */
+    public WorldChunks(int numRows, int numCols, int budget) {
+        this.numRows = Math.max(numRows, 0);
+        this.numCols = Math.max(numCols, 0);
+        this.chunkRows = (this.numRows + CHUNK_MASK) >> CHUNK_BITS;
+        this.chunkCols = (this.numCols + CHUNK_MASK) >> CHUNK_BITS;
+        this.chunks = new Chunk[this.chunkRows * this.chunkCols];
+        this.stored = new boolean[this.chunks.length];
+        this.parked = new Entity[this.chunks.length][];
+        this.parkedCells = new short[this.chunks.length][];
+        this.budget = budget;
+        this.recent = budget > 0 ? new LinkedHashMap<>(16, 0.75f, true) : null;
+        this.paletteIndex = new HashMap<>();
+        this.palette = new ArrayList<>();
+    }
+
+    public static int budgetFor(long memoryBytes) {
+        return memoryBytes <= 0 ? 0 : (int) Math.max(1, memoryBytes / CHUNK_BYTES);
+    }
+
+    public int residentChunks() {
+        return this.resident;
+    }
+
+    public Background getBackground(int x, int y) {
+        short tile = chunk(x, y).tiles[cell(x, y)];
+        return tile == NO_TILE ? this.fallback : this.palette.get(tile);
+    }
+
+    public void setBackground(int x, int y, Background background) {
+        setTile(x, y, background == null ? NO_TILE : intern(background));
+    }
+
+    public void setTile(int x, int y, short tile) {
+        chunk(x, y).tiles[cell(x, y)] = tile;
+    }
+
+    /*
+       The palette index for the tile id, or NO_TILE if it has none yet.
+     */
+    public short findTile(String id) {
+        Short tile = this.paletteIndex.get(id);
+        return tile == null ? NO_TILE : tile;
+    }
+
+    /*
+       Adds the background to the palette as the prototype for its id,
+       unless that id already has one.
+     */
+    public short intern(Background background) {
+        Short index = this.paletteIndex.get(background.id);
+        if (index == null) {
+            if (this.palette.size() > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("too many distinct backgrounds");
+            }
+            index = (short) this.palette.size();
+            this.paletteIndex.put(background.id, index);
+            this.palette.add(background);
+        }
+        return index;
+    }
+
+    public Entity getOccupant(int x, int y) {
+        int index = chunkIndex(x, y);
+        Chunk chunk = this.chunks[index];
+        return chunk != null ? chunk.occupancy[cell(x, y)] : parkedAt(index, cell(x, y));
+    }
+
+    public void setOccupant(int x, int y, Entity entity) {
+        Chunk chunk = chunk(x, y);
+        Entity previous = chunk.occupancy[cell(x, y)];
+        chunk.occupancy[cell(x, y)] = entity;
+        chunk.entityCount += (entity != null ? 1 : 0) - (previous != null ? 1 : 0);
+        chunk.mobileCount += (entity != null && FlowField.isMobile(entity.getKind()) ? 1 : 0)
+                - (previous != null && FlowField.isMobile(previous.getKind()) ? 1 : 0);
+    }
+
+    private Entity parkedAt(int index, int cell) {
+        short[] cells = this.parkedCells[index];
+        if (cells == null) {
+            return null;
+        }
+        int found = Arrays.binarySearch(cells, (short) cell);
+        return found < 0 ? null : this.parked[index][found];
+    }
+
+    /*
+       Visits the occupants of the cells in the rectangle row by row, left
+       to right, skipping the chunks that hold no entities. The cost
+       follows the rectangle's area, not the world's population.
+     */
+    public void forEachOccupant(int col, int row, int numCols, int numRows, Consumer<Entity> action) {
+        int x0 = Math.max(col, 0);
+        int y0 = Math.max(row, 0);
+        int x1 = Math.min(col + numCols, this.numCols) - 1;
+        int y1 = Math.min(row + numRows, this.numRows) - 1;
+        for (int y = y0; y <= y1; y++) {
+            for (int chunkCol = x0 >> CHUNK_BITS; chunkCol <= x1 >> CHUNK_BITS; chunkCol++) {
+                int index = (y >> CHUNK_BITS) * this.chunkCols + chunkCol;
+                Chunk chunk = this.chunks[index];
+                if (chunk == null ? this.parked[index] == null : chunk.entityCount == 0) {
+                    continue;
+                }
+                int end = Math.min(x1, (chunkCol << CHUNK_BITS) + CHUNK_MASK);
+                for (int x = Math.max(x0, chunkCol << CHUNK_BITS); x <= end; x++) {
+                    Entity entity = chunk != null ? chunk.occupancy[cell(x, y)] : parkedAt(index, cell(x, y));
+                    if (entity != null) {
+                        action.accept(entity);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+       Marks the cells in view; chunks overlapping them are never evicted.
+     */
+    public void setView(int col, int row, int numCols, int numRows) {
+        this.viewCol0 = col >> CHUNK_BITS;
+        this.viewRow0 = row >> CHUNK_BITS;
+        this.viewCol1 = (col + numCols - 1) >> CHUNK_BITS;
+        this.viewRow1 = (row + numRows - 1) >> CHUNK_BITS;
+    }
+
+    private Chunk chunk(int x, int y) {
+        int index = chunkIndex(x, y);
+        Chunk chunk = this.chunks[index];
+        if (chunk == null) {
+            chunk = fault(index);
+        }
+        if (this.recent != null && chunk != this.lastUsed) {
+            // keyed by the chunk itself, so touching it allocates nothing
+            this.recent.get(chunk);
+            this.lastUsed = chunk;
+        }
+        return chunk;
+    }
+
+    private Chunk fault(int index) {
+        if (this.budget > 0 && this.resident >= this.budget) {
+            evict();
+        }
+        Chunk chunk = new Chunk(index);
+        if (this.stored[index]) {
+            read(index, chunk);
+        }
+        Entity[] occupants = this.parked[index];
+        if (occupants != null) {
+            short[] cells = this.parkedCells[index];
+            for (int i = 0; i < occupants.length; i++) {
+                chunk.occupancy[cells[i]] = occupants[i];
+            }
+            chunk.entityCount = occupants.length;
+            this.parked[index] = null;
+            this.parkedCells[index] = null;
+        }
+        this.chunks[index] = chunk;
+        this.resident++;
+        if (this.recent != null) {
+            this.recent.put(chunk, chunk);
+        }
+        return chunk;
+    }
+
+    /*
+       Evicts the least recently used chunk that holds no dudes or fairies
+       and is out of view. If every resident chunk is pinned, the budget is
+       exceeded rather than losing state.
+     */
+    private void evict() {
+        Iterator<Chunk> chunks = this.recent.keySet().iterator();
+        while (chunks.hasNext()) {
+            Chunk chunk = chunks.next();
+            if (chunk.mobileCount == 0 && !inView(chunk.index)) {
+                chunks.remove();
+                write(chunk.index, chunk);
+                park(chunk);
+                this.chunks[chunk.index] = null;
+                this.resident--;
+                if (this.lastUsed == chunk) {
+                    this.lastUsed = null;
+                }
+                return;
+            }
+        }
+    }
+
+    private void park(Chunk chunk) {
+        if (chunk.entityCount == 0) {
+            return;
+        }
+        Entity[] occupants = new Entity[chunk.entityCount];
+        short[] cells = new short[chunk.entityCount];
+        int count = 0;
+        for (int cell = 0; cell < CHUNK_CELLS; cell++) {
+            if (chunk.occupancy[cell] != null) {
+                occupants[count] = chunk.occupancy[cell];
+                cells[count++] = (short) cell;
+            }
+        }
+        this.parked[chunk.index] = occupants;
+        this.parkedCells[chunk.index] = cells;
+    }
+
+    private boolean inView(int index) {
+        int cx = index % this.chunkCols;
+        int cy = index / this.chunkCols;
+        return cx >= this.viewCol0 && cx <= this.viewCol1 && cy >= this.viewRow0 && cy <= this.viewRow1;
+    }
+
+    private void write(int index, Chunk chunk) {
+        ByteBuffer buffer = scratch();
+        buffer.asShortBuffer().put(chunk.tiles);
+        try {
+            long offset = (long) index * CHUNK_CELLS * Short.BYTES;
+            while (buffer.hasRemaining()) {
+                this.backing.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.stored[index] = true;
+    }
+
+    private void read(int index, Chunk chunk) {
+        ByteBuffer buffer = scratch();
+        try {
+            long offset = (long) index * CHUNK_CELLS * Short.BYTES;
+            while (buffer.hasRemaining() && this.backing.read(buffer, offset + buffer.position()) >= 0) {
+                // keep reading until the whole chunk is in
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip().asShortBuffer().get(chunk.tiles);
+    }
+
+    private ByteBuffer scratch() {
+        if (this.backing == null) {
+            try {
+                Path file = Files.createTempFile("world", ".chunks");
+                file.toFile().deleteOnExit();
+                this.backing = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.scratch = ByteBuffer.allocate(CHUNK_CELLS * Short.BYTES);
+        }
+        return this.scratch.clear();
+    }
+
+    private int chunkIndex(int x, int y) {
+        return (y >> CHUNK_BITS) * this.chunkCols + (x >> CHUNK_BITS);
+    }
+
+    private static int cell(int x, int y) {
+        return (y & CHUNK_MASK) * CHUNK_SIZE + (x & CHUNK_MASK);
+    }
+}
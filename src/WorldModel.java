@@ -1,6 +1,7 @@
 import processing.core.PImage;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Represents the 2D World in which this simulation is running.
@@ -10,64 +11,167 @@ import java.util.*;
 public final class WorldModel {
     public int numRows;
     public int numCols;
-    public Background[][] background;
-    public Entity[][] occupancy;
-    public Set<Entity> entities;
+    public WorldChunks chunks;
+    // bytes of grid chunks to keep in memory, or 0 for no limit
+    public long memoryBudget;
+    public EntityStore entities;
+    // entities created but not yet added; addEntity adopts them into entities
+    public final EntityStore spawning;
+    public EntityIndex index;
+    public long seed;
+    public boolean seeded;
+    public SplittableRandom random;
+    public Map<List<EntityKind>, FlowField> flowFields;
+    public Navigator dudeNavigator;
+    public Navigator fairyNavigator;
+    public Map<Entity, TargetSubscription> subscriptions;
+    public Map<EntityKind, Set<TargetSubscription>> watchers;
+    // orders of the entities removed since the last checkpoint, once one is taken
+    public List<Long> removedSinceCheckpoint;
+    // cells in view that need redrawing, when there is a view
+    public DirtyTiles dirtyTiles;
+    public BackgroundCache backgroundCache;
+    // parse throughput of the save file this world was loaded from, if any
+    public String loadReport;
 
     public WorldModel() {
+        this.spawning = new EntityStore();
+        this.subscriptions = new HashMap<>();
+        this.watchers = new EnumMap<>(EntityKind.class);
+    }
 
+    public Optional<PImage> getBackgroundImage(Point pos) {
+        return getBackgroundImage(pos.pack());
     }
 
-    private static Optional<Entity> nearestEntity(List<Entity> entities, Point pos) {
-        if (entities.isEmpty()) {
-            return Optional.empty();
+    public Optional<PImage> getBackgroundImage(long pos) {
+        if (this.withinBounds(pos)) {
+            return Optional.of(ImageStore.getCurrentImage(this.getBackgroundCell(pos)));
         } else {
-            Entity nearest = entities.get(0);
-            int nearestDistance = distanceSquared(nearest.position, pos);
+            return Optional.empty();
+        }
+    }
 
-            for (Entity other : entities) {
-                int otherDistance = distanceSquared(other.position, pos);
+    /*
+       Switches navigation to shared flow fields, built lazily per set of
+       target kinds. Off by default, as it routes agents around obstacles
+       where the greedy step would stop.
+     */
+    public void enableFlowFields() {
+        this.flowFields = new HashMap<>();
+    }
 
-                if (otherDistance < nearestDistance) {
-                    nearest = other;
-                    nearestDistance = otherDistance;
+    public FlowField getFlowField(List<EntityKind> targets, boolean stumpsPassable) {
+        if (this.flowFields == null) {
+            return null;
+        }
+        return this.flowFields.computeIfAbsent(targets, kinds -> new FlowField(this, kinds, stumpsPassable));
+    }
+
+    /*
+       Switches navigation to hierarchical pathfinding, building the
+       abstract graphs for dudes and fairies now. Off by default for the
+       same reason as flow fields.
+     */
+    public void enablePathfinding() {
+        this.dudeNavigator = new Navigator(this, true);
+        this.fairyNavigator = new Navigator(this, false);
+    }
+
+    public Navigator getNavigator(boolean dudes) {
+        return dudes ? this.dudeNavigator : this.fairyNavigator;
+    }
+
+    /*
+       Keeps the flow fields and navigators in step with an entity
+       arriving at or leaving pos. Only stationary entities change them.
+     */
+    private void updateNavigation(Entity entity, long pos, boolean added) {
+        if (this.dudeNavigator != null) {
+            if (!added) {
+                this.dudeNavigator.forget(entity);
+                this.fairyNavigator.forget(entity);
+            }
+            if (!FlowField.isMobile(entity.getKind())) {
+                this.dudeNavigator.cellChanged(pos);
+                this.fairyNavigator.cellChanged(pos);
+            }
+        }
+        if (this.flowFields != null && !FlowField.isMobile(entity.getKind())) {
+            for (FlowField field : this.flowFields.values()) {
+                if (added && field.isTarget(entity.getKind())) {
+                    field.addTarget(pos);
+                } else {
+                    field.invalidate();
                 }
             }
-
-            return Optional.of(nearest);
         }
     }
 
-    private static int distanceSquared(Point p1, Point p2) {
-        int deltaX = p1.x - p2.x;
-        int deltaY = p1.y - p2.y;
+    public Optional<Entity> findNearest(Point pos, List<EntityKind> kinds) {
+        return findNearest(pos.pack(), kinds);
+    }
 
-        return deltaX * deltaX + deltaY * deltaY;
+    public Optional<Entity> findNearest(long pos, List<EntityKind> kinds) {
+        return this.index.findNearest(Point.x(pos), Point.y(pos), kinds);
     }
 
-    public Optional<PImage> getBackgroundImage(Point pos) {
-        if (this.withinBounds(pos)) {
-            return Optional.of(ImageStore.getCurrentImage(this.getBackgroundCell(pos)));
-        } else {
-            return Optional.empty();
+    /*
+       Same answer as findNearest from the agent's position, or null when
+       there is none, but cached per agent and only searched again when a
+       change to the world or the agent's own movement could have changed
+       it. A cache hit allocates nothing.
+     */
+    public Entity findNearestCached(Entity agent, List<EntityKind> kinds) {
+        TargetSubscription subscription = this.subscriptions.get(agent);
+        if (subscription == null || !subscription.kinds.equals(kinds)) {
+            unsubscribe(agent);
+            subscription = new TargetSubscription(agent, kinds);
+            this.subscriptions.put(agent, subscription);
+            for (EntityKind kind : kinds) {
+                this.watchers.computeIfAbsent(kind, k -> new LinkedHashSet<>()).add(subscription);
+            }
         }
+        if (!subscription.isCurrent()) {
+            subscription.update(this.index.search(agent.getX(), agent.getY(), kinds));
+        }
+        return subscription.target;
     }
 
-    public Optional<Entity> findNearest(Point pos, List<EntityKind> kinds) {
-        List<Entity> ofType = new LinkedList<>();
-        for (EntityKind kind : kinds) {
-            for (Entity entity : this.entities) {
-                if (entity.kind == kind) {
-                    ofType.add(entity);
-                }
+    private void unsubscribe(Entity agent) {
+        TargetSubscription subscription = this.subscriptions.remove(agent);
+        if (subscription != null) {
+            for (EntityKind kind : subscription.kinds) {
+                this.watchers.get(kind).remove(subscription);
+            }
+        }
+    }
+
+    private void notifyArrived(Entity entity) {
+        Set<TargetSubscription> watching = this.watchers.get(entity.getKind());
+        if (watching != null) {
+            for (TargetSubscription subscription : watching) {
+                subscription.entityArrived(entity, entity.getX(), entity.getY());
             }
         }
+    }
 
-        return nearestEntity(ofType, pos);
+    private void notifyLeft(Entity entity) {
+        Set<TargetSubscription> watching = this.watchers.get(entity.getKind());
+        if (watching != null) {
+            for (TargetSubscription subscription : watching) {
+                subscription.entityLeft(entity);
+            }
+        }
+        unsubscribe(entity);
     }
 
-    private Background getBackgroundCell(Point pos) {
-        return this.background[pos.y][pos.x];
+    private Background getBackgroundCell(long pos) {
+        return this.chunks.getBackground(Point.x(pos), Point.y(pos));
+    }
+
+    public Background getBackgroundCell(int x, int y) {
+        return this.chunks.getBackground(x, y);
     }
 
     /*
@@ -75,42 +179,104 @@ public final class WorldModel {
            intended destination cell.
         */
     public void addEntity(Entity entity) {
-        if (this.withinBounds(entity.position)) {
-            this.setOccupancyCell(entity.position, entity);
-            this.entities.add(entity);
+        if (this.withinBounds(entity.getPositionKey())) {
+            this.setOccupancyCell(entity.getPositionKey(), entity);
+            this.entities.adopt(entity);
+            this.index.add(entity);
+            entity.markChanged();
+            this.updateNavigation(entity, entity.getPositionKey(), true);
+            this.notifyArrived(entity);
+            if (this.random != null) {
+                entity.setRandom(this.random.split());
+            }
+        } else {
+            entity.store.release(entity);
         }
     }
 
     public void moveEntity(EventScheduler scheduler, Entity entity, Point pos) {
-        Point oldPos = entity.position;
-        if (this.withinBounds(pos) && !pos.equals(oldPos)) {
+        moveEntity(scheduler, entity, pos.pack());
+    }
+
+    public void moveEntity(EventScheduler scheduler, Entity entity, long pos) {
+        long oldPos = entity.getPositionKey();
+        if (this.withinBounds(pos) && pos != oldPos) {
             this.setOccupancyCell(oldPos, null);
-            Optional<Entity> occupant = this.getOccupant(pos);
-            occupant.ifPresent(target -> this.removeEntity(scheduler, target));
+            Entity occupant = this.getOccupancyCell(pos);
+            if (occupant != null) {
+                this.removeEntity(scheduler, occupant);
+            }
             this.setOccupancyCell(pos, entity);
-            entity.position = pos;
+            this.index.move(entity, oldPos, pos);
+            entity.setPosition(pos);
+            this.notifyArrived(entity);
+            TargetSubscription subscription = this.subscriptions.get(entity);
+            if (subscription != null) {
+                subscription.agentMoved(Math.hypot(Point.x(pos) - Point.x(oldPos), Point.y(pos) - Point.y(oldPos)));
+            }
+            if (!FlowField.isMobile(entity.getKind())) {
+                this.updateNavigation(entity, oldPos, false);
+                this.updateNavigation(entity, pos, true);
+            }
+        }
+    }
+
+    /*
+       Adds many entities at once, such as a large spawn, growing the
+       store once up front. All or nothing: if any of them would land on
+       an occupied cell, or on the same cell as another in the batch, none
+       is added, every one is released and the batch fails like
+       tryAddEntity.
+     */
+    public void addEntities(Collection<Entity> entities) {
+        Set<Long> claimed = new HashSet<>();
+        for (Entity entity : entities) {
+            long pos = entity.getPositionKey();
+            if (withinBounds(pos) && (isOccupied(pos) || !claimed.add(pos))) {
+                for (Entity dropped : entities) {
+                    if (dropped.store != null) {
+                        dropped.store.release(dropped);
+                    }
+                }
+                throw new IllegalArgumentException("position occupied");
+            }
+        }
+        this.entities.ensureCapacity(this.entities.size() + entities.size());
+        for (Entity entity : entities) {
+            addEntity(entity);
         }
     }
 
-    private void tryAddEntity(Entity entity) {
-        if (isOccupied(entity.position)) {
+    public void tryAddEntity(Entity entity) {
+        if (isOccupied(entity.getPositionKey())) {
             // arguably the wrong type of exception, but we are not
             // defining our own exceptions yet
+            entity.store.release(entity);
             throw new IllegalArgumentException("position occupied");
         }
 
         addEntity(entity);
     }
 
-    private boolean withinBounds(Point pos) {
-        return pos.y >= 0 && pos.y < this.numRows && pos.x >= 0 && pos.x < this.numCols;
+    public boolean withinBounds(long pos) {
+        int x = Point.x(pos);
+        int y = Point.y(pos);
+        return y >= 0 && y < this.numRows && x >= 0 && x < this.numCols;
     }
 
     public boolean isOccupied(Point pos) {
+        return isOccupied(pos.pack());
+    }
+
+    public boolean isOccupied(long pos) {
         return withinBounds(pos) && this.getOccupancyCell(pos) != null;
     }
 
     public Optional<Entity> getOccupant(Point pos) {
+        return getOccupant(pos.pack());
+    }
+
+    public Optional<Entity> getOccupant(long pos) {
         if (isOccupied(pos)) {
             return Optional.of(getOccupancyCell(pos));
         } else {
@@ -119,39 +285,83 @@ public final class WorldModel {
     }
 
     public Entity getOccupancyCell(Point pos) {
-        return this.occupancy[pos.y][pos.x];
+        return getOccupancyCell(pos.pack());
+    }
+
+    public Entity getOccupancyCell(long pos) {
+        return this.chunks.getOccupant(Point.x(pos), Point.y(pos));
     }
 
-    private void setOccupancyCell(Point pos, Entity entity) {
-        this.occupancy[pos.y][pos.x] = entity;
+    public Entity getOccupancyCell(int x, int y) {
+        return this.chunks.getOccupant(x, y);
     }
 
-    private void parseSaveFile(Scanner saveFile, ImageStore imageStore, Background defaultBackground){
+    /*
+       Visits the entities inside the rectangle in row-major order, so
+       repeated queries over the same cells visit them in the same order.
+     */
+    public void forEachEntityIn(int col, int row, int numCols, int numRows, Consumer<Entity> action) {
+        this.chunks.forEachOccupant(col, row, numCols, numRows, action);
+    }
+
+    private void setOccupancyCell(long pos, Entity entity) {
+        this.chunks.setOccupant(Point.x(pos), Point.y(pos), entity);
+        if (this.dirtyTiles != null) {
+            this.dirtyTiles.mark(pos);
+        }
+    }
+
+    /*
+       Creates the grids once the world's size is known. Chunks are only
+       allocated as cells are written.
+     */
+    public void createGrid() {
+        if (this.chunks == null) {
+            this.chunks = new WorldChunks(this.numRows, this.numCols, WorldChunks.budgetFor(this.memoryBudget));
+        }
+    }
+
+    /*
+       Reads the headers and backgrounds of a save file, handing each line
+       of the Entities: section to entityLines. Returns whether the save
+       had a Backgrounds: section.
+     */
+    public boolean parseSaveFile(Iterator<String> saveFile, ImageStore imageStore, Consumer<String> entityLines){
+        boolean backgrounds = false;
         String lastHeader = "";
         int headerLine = 0;
         int lineCounter = 0;
-        while(saveFile.hasNextLine()){
+        while(saveFile.hasNext()){
             lineCounter++;
-            String line = saveFile.nextLine().strip();
+            String line = saveFile.next().strip();
             if(line.endsWith(":")){
                 headerLine = lineCounter;
                 lastHeader = line;
                 switch (line){
-                    case "Backgrounds:" -> this.background = new Background[this.numRows][this.numCols];
+                    case "Backgrounds:" -> {
+                        createGrid();
+                        backgrounds = true;
+                    }
                     case "Entities:" -> {
-                        this.occupancy = new Entity[this.numRows][this.numCols];
-                        this.entities = new HashSet<>();
+                        createGrid();
+                        this.entities = new EntityStore();
+                        this.index = new EntityIndex(this.numRows, this.numCols);
                     }
                 }
             }else{
                 switch (lastHeader){
                     case "Rows:" -> this.numRows = Integer.parseInt(line);
                     case "Cols:" -> this.numCols = Integer.parseInt(line);
+                    case "Seed:" -> {
+                        this.seed = Long.parseLong(line);
+                        this.seeded = true;
+                    }
                     case "Backgrounds:" -> parseBackgroundRow(line, lineCounter-headerLine-1, imageStore);
-                    case "Entities:" -> parseEntity(line, imageStore);
+                    case "Entities:" -> entityLines.accept(line);
                 }
             }
         }
+        return backgrounds;
     }
 
     private void parseBackgroundRow(String line, int row, ImageStore imageStore) {
@@ -159,12 +369,21 @@ public final class WorldModel {
         if(row < this.numRows){
             int rows = Math.min(cells.length, this.numCols);
             for (int col = 0; col < rows; col++){
-                this.background[row][col] = new Background(cells[col], imageStore.getImageList(cells[col]));
+                short tile = this.chunks.findTile(cells[col]);
+                if (tile == WorldChunks.NO_TILE) {
+                    tile = this.chunks.intern(new Background(cells[col], imageStore.getImageList(cells[col])));
+                }
+                this.chunks.setTile(col, row, tile);
             }
         }
     }
 
-    private void parseEntity(String line, ImageStore imageStore) {
+    /*
+       Parses one line of the Entities: section into a row of the given
+       store. Touches no world state, so lines may be parsed on any thread
+       into a store of the thread's own.
+     */
+    public static Entity parseEntity(String line, EntityStore store, ImageStore imageStore) {
         String[] properties = line.split(" ", Functions.ENTITY_NUM_PROPERTIES + 1);
         if (properties.length >= Functions.ENTITY_NUM_PROPERTIES) {
             String key = properties[Functions.PROPERTY_KEY];
@@ -174,70 +393,70 @@ public final class WorldModel {
             properties = properties.length == Functions.ENTITY_NUM_PROPERTIES ?
                     new String[0] : properties[Functions.ENTITY_NUM_PROPERTIES].split(" ");
 
-            switch (key) {
-                case Functions.OBSTACLE_KEY -> this.parseObstacle(properties, pt, id, imageStore);
-                case Functions.DUDE_KEY -> this.parseDude(properties, pt, id, imageStore);
-                case Functions.FAIRY_KEY -> this.parseFairy(properties, pt, id, imageStore);
-                case Functions.HOUSE_KEY -> this.parseHouse(properties, pt, id, imageStore);
-                case Functions.TREE_KEY -> this.parseTree(properties, pt, id, imageStore);
-                case Functions.SAPLING_KEY -> this.parseSapling(properties, pt, id, imageStore);
-                case Functions.STUMP_KEY -> this.parseStump(properties, pt, id, imageStore);
+            return switch (key) {
+                case Functions.OBSTACLE_KEY -> parseObstacle(properties, pt, id, store, imageStore);
+                case Functions.DUDE_KEY -> parseDude(properties, pt, id, store, imageStore);
+                case Functions.FAIRY_KEY -> parseFairy(properties, pt, id, store, imageStore);
+                case Functions.HOUSE_KEY -> parseHouse(properties, pt, id, store, imageStore);
+                case Functions.TREE_KEY -> parseTree(properties, pt, id, store, imageStore);
+                case Functions.SAPLING_KEY -> parseSapling(properties, pt, id, store, imageStore);
+                case Functions.STUMP_KEY -> parseStump(properties, pt, id, store, imageStore);
                 default -> throw new IllegalArgumentException("Entity key is unknown");
-            }
+            };
         }else{
             throw new IllegalArgumentException("Entity must be formatted as [key] [id] [x] [y] ...");
         }
     }
 
-    private void parseDude(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseDude(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.DUDE_NUM_PROPERTIES) {
-            Entity entity = Entity.createDudeNotFull(id, pt, Double.parseDouble(properties[Functions.DUDE_ACTION_PERIOD]), Double.parseDouble(properties[Functions.DUDE_ANIMATION_PERIOD]), Integer.parseInt(properties[Functions.DUDE_LIMIT]), imageStore.getImageList(Functions.DUDE_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createDudeNotFull(store, id, pt, Double.parseDouble(properties[Functions.DUDE_ACTION_PERIOD]), Double.parseDouble(properties[Functions.DUDE_ANIMATION_PERIOD]), Integer.parseInt(properties[Functions.DUDE_LIMIT]), imageStore.getImageList(Functions.DUDE_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.DUDE_KEY, Functions.DUDE_NUM_PROPERTIES));
         }
     }
 
-    private void parseFairy(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseFairy(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.FAIRY_NUM_PROPERTIES) {
-            Entity entity = Entity.createFairy(id, pt, Double.parseDouble(properties[Functions.FAIRY_ACTION_PERIOD]), Double.parseDouble(properties[Functions.FAIRY_ANIMATION_PERIOD]), imageStore.getImageList(Functions.FAIRY_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createFairy(store, id, pt, Double.parseDouble(properties[Functions.FAIRY_ACTION_PERIOD]), Double.parseDouble(properties[Functions.FAIRY_ANIMATION_PERIOD]), imageStore.getImageList(Functions.FAIRY_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.FAIRY_KEY, Functions.FAIRY_NUM_PROPERTIES));
         }
     }
 
-    private void parseTree(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseTree(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.TREE_NUM_PROPERTIES) {
-            Entity entity = Entity.createTree(id, pt, Double.parseDouble(properties[Functions.TREE_ACTION_PERIOD]), Double.parseDouble(properties[Functions.TREE_ANIMATION_PERIOD]), Integer.parseInt(properties[Functions.TREE_HEALTH]), imageStore.getImageList(Functions.TREE_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createTree(store, id, pt, Double.parseDouble(properties[Functions.TREE_ACTION_PERIOD]), Double.parseDouble(properties[Functions.TREE_ANIMATION_PERIOD]), Integer.parseInt(properties[Functions.TREE_HEALTH]), imageStore.getImageList(Functions.TREE_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.TREE_KEY, Functions.TREE_NUM_PROPERTIES));
         }
     }
 
-    private void parseObstacle(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseObstacle(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.OBSTACLE_NUM_PROPERTIES) {
-            Entity entity = Entity.createObstacle(id, pt, Double.parseDouble(properties[Functions.OBSTACLE_ANIMATION_PERIOD]), imageStore.getImageList(Functions.OBSTACLE_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createObstacle(store, id, pt, Double.parseDouble(properties[Functions.OBSTACLE_ANIMATION_PERIOD]), imageStore.getImageList(Functions.OBSTACLE_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.OBSTACLE_KEY, Functions.OBSTACLE_NUM_PROPERTIES));
         }
     }
 
-    private void parseHouse(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseHouse(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.HOUSE_NUM_PROPERTIES) {
-            Entity entity = Entity.createHouse(id, pt, imageStore.getImageList(Functions.HOUSE_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createHouse(store, id, pt, imageStore.getImageList(Functions.HOUSE_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.HOUSE_KEY, Functions.HOUSE_NUM_PROPERTIES));
         }
     }
 
-    private void parseStump(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseStump(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.STUMP_NUM_PROPERTIES) {
-            Entity entity = Entity.createStump(id, pt, imageStore.getImageList(Functions.STUMP_KEY));
-            tryAddEntity(entity);
+            Entity entity = Entity.createStump(store, id, pt, imageStore.getImageList(Functions.STUMP_KEY));
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.STUMP_KEY, Functions.STUMP_NUM_PROPERTIES));
         }
@@ -245,43 +464,96 @@ public final class WorldModel {
 
     public void removeEntity(EventScheduler scheduler, Entity entity) {
         scheduler.unscheduleAllEvents(entity);
-        removeEntityAt(entity.position);
+        removeEntityAt(entity.getPositionKey());
     }
 
-    private void removeEntityAt(Point pos) {
+    private void removeEntityAt(long pos) {
         if (withinBounds(pos) && getOccupancyCell(pos) != null) {
             Entity entity = getOccupancyCell(pos);
 
-            /* This moves the entity just outside of the grid for
-             * debugging purposes. */
-            entity.position = new Point(-1, -1);
-            this.entities.remove(entity);
+            this.index.remove(entity);
+            this.updateNavigation(entity, pos, false);
+            this.notifyLeft(entity);
+            if (this.removedSinceCheckpoint != null) {
+                this.removedSinceCheckpoint.add(entity.store.order[entity.handle]);
+            }
+
             setOccupancyCell(pos, null);
+            this.entities.release(entity);
         }
     }
 
-    private void setBackgroundCell(Point pos, Background background) {
-        this.background[pos.y][pos.x] = background;
+    public void setBackgroundCell(int x, int y, Background background) {
+        this.chunks.setBackground(x, y, background);
+        if (this.backgroundCache != null) {
+            this.backgroundCache.invalidate(x, y);
+        }
+        if (this.dirtyTiles != null) {
+            this.dirtyTiles.mark(Point.pack(x, y));
+        }
     }
 
     public void load(Scanner saveFile, ImageStore imageStore, Background defaultBackground){
-        parseSaveFile(saveFile, imageStore, defaultBackground);
-        if(this.background == null){
-            this.background = new Background[this.numRows][this.numCols];
-            for (Background[] row : this.background)
-                Arrays.fill(row, defaultBackground);
+        Iterator<String> lines = new Iterator<>() {
+            public boolean hasNext() {
+                return saveFile.hasNextLine();
+            }
+
+            public String next() {
+                return saveFile.nextLine();
+            }
+        };
+        boolean backgrounds = parseSaveFile(lines, imageStore, line -> tryAddEntity(parseEntity(line, this.spawning, imageStore)));
+        finishLoad(backgrounds, defaultBackground);
+    }
+
+    /*
+       Fills in whatever the save left out, once every entity is added.
+     */
+    public void finishLoad(boolean backgrounds, Background defaultBackground) {
+        createGrid();
+        if(!backgrounds){
+            this.chunks.fallback = defaultBackground;
+        }
+        if(this.entities == null){
+            this.entities = new EntityStore();
+            this.index = new EntityIndex(this.numRows, this.numCols);
+        }
+        startRandom();
+    }
+
+    /*
+       Seeds the world's random streams from its Seed: header, or else
+       from a fresh seed that is not recorded as the world's own.
+     */
+    public void startRandom() {
+        if (this.seeded) {
+            setSeed(this.seed);
+        } else {
+            setSeed(new SplittableRandom().nextLong());
+            this.seeded = false;
         }
-        if(this.occupancy == null){
-            this.occupancy = new Entity[this.numRows][this.numCols];
-            this.entities = new HashSet<>();
+    }
+
+    /*
+       Restarts the world's random stream from the given seed and derives
+       a fresh stream for every entity, in entity order, so a seeded run
+       is reproducible and entities never share a generator.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+        this.random = new SplittableRandom(seed);
+        for (Entity entity : this.entities) {
+            entity.setRandom(this.random.split());
         }
     }
 
-    private void parseSapling(String[] properties, Point pt, String id, ImageStore imageStore) {
+    private static Entity parseSapling(String[] properties, Point pt, String id, EntityStore store, ImageStore imageStore) {
         if (properties.length == Functions.SAPLING_NUM_PROPERTIES) {
             int health = Integer.parseInt(properties[Functions.SAPLING_HEALTH]);
-            Entity entity = Entity.createSapling(id, pt, imageStore.getImageList(Functions.SAPLING_KEY), health);
-            tryAddEntity(entity);
+            Entity entity = Entity.createSapling(store, id, pt, imageStore.getImageList(Functions.SAPLING_KEY), health);
+            return entity;
         }else{
             throw new IllegalArgumentException(String.format("%s requires %d properties when parsing", Functions.SAPLING_KEY, Functions.SAPLING_NUM_PROPERTIES));
         }
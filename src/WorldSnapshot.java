@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A compact binary world format, read through a memory-mapped file so
+ * that loading is bounded by I/O rather than text parsing.
+ *
+ * Layout (big-endian):
+ *   header    magic "VWLD", version, rows, cols, seeded flag, seed
+ *   palette   count, then each background id as a length-prefixed UTF-8 string
+ *   tiles     rows * cols shorts, each a palette index or -1 for none
+ *   entities  count, then fixed-width records of RECORD_SIZE bytes
+ *   ids       pool size, then length-prefixed UTF-8 entity ids that the
+ *             records point into by byte offset
+ *
+ * Usage: WorldSnapshot in out
+ *   converts between world.sav text and the binary format, choosing the
+ *   direction from whether the input starts with the magic number.
+ */
+public final class WorldSnapshot {
+    public static final int MAGIC = 0x564c5744; // "VWLD" read as a big-endian int
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 56;
+    public static final short NO_TILE = -1;
+
+    public static boolean isSnapshot(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            return channel.read(magic, 0) == Integer.BYTES && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static WorldModel read(Path path, ImageStore imageStore) throws IOException {
+        WorldModel world = new WorldModel();
+        load(world, path, imageStore);
+        return world;
+    }
+
+    public static WorldModel read(ByteBuffer buffer, ImageStore imageStore) {
+        WorldModel world = new WorldModel();
+        load(world, buffer, imageStore);
+        return world;
+    }
+
+    public static void load(WorldModel world, Path path, ImageStore imageStore) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            load(world, buffer, imageStore);
+        }
+    }
+
+    /*
+       Fills an empty world, which may already have its memory budget set.
+     */
+    public static void load(WorldModel world, ByteBuffer buffer, ImageStore imageStore) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("not a world snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException(String.format("unsupported world snapshot version %d", version));
+        }
+
+        readGrid(world, buffer, imageStore);
+
+        int count = buffer.getInt();
+        ByteBuffer records = buffer.slice(buffer.position(), count * RECORD_SIZE);
+        buffer.position(buffer.position() + count * RECORD_SIZE);
+        buffer.getInt();
+        ByteBuffer ids = buffer.slice();
+
+        world.entities = new EntityStore(count);
+        world.index = new EntityIndex(world.numRows, world.numCols);
+        EntityKind[] kinds = EntityKind.values();
+        for (int i = 0; i < count; i++) {
+            int base = i * RECORD_SIZE;
+            EntityKind kind = kinds[records.getInt(base)];
+            Point position = new Point(records.getInt(base + 4), records.getInt(base + 8));
+            if (position.x < 0 || position.x >= world.numCols || position.y < 0 || position.y >= world.numRows) {
+                throw new IllegalArgumentException(String.format("entity outside the world at %s", position));
+            }
+            if (world.isOccupied(position)) {
+                throw new IllegalArgumentException("position occupied");
+            }
+            String id = getString(ids.position(records.getInt(base + 12)));
+            Entity entity = new Entity(world.entities, kind, id, position, imageStore.getImageList(imageKey(kind)),
+                    records.getInt(base + 16), records.getInt(base + 20), records.getDouble(base + 40), records.getDouble(base + 48),
+                    records.getInt(base + 24), records.getInt(base + 28));
+            entity.store.imageIndex[entity.handle] = records.getInt(base + 32);
+            world.addEntity(entity);
+        }
+
+        world.startRandom();
+    }
+
+    /*
+       Reads the size, seed, palette and tiles sections into the world.
+     */
+    public static void readGrid(WorldModel world, ByteBuffer buffer, ImageStore imageStore) {
+        world.numRows = buffer.getInt();
+        world.numCols = buffer.getInt();
+        world.seeded = buffer.get() != 0;
+        world.seed = buffer.getLong();
+
+        // the snapshot's palette is mapped onto the world's shared one
+        world.createGrid();
+        short[] palette = new short[buffer.getInt()];
+        for (int i = 0; i < palette.length; i++) {
+            String id = getString(buffer);
+            palette[i] = world.chunks.intern(new Background(id, imageStore.getImageList(id)));
+        }
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                short tile = buffer.getShort();
+                if (tile != NO_TILE) {
+                    world.chunks.setTile(col, row, palette[tile]);
+                }
+            }
+        }
+    }
+
+    /*
+       Encodes the size, seed, palette and tiles sections.
+     */
+    public static byte[] gridBytes(WorldModel world) {
+        Map<String, Integer> palette = new LinkedHashMap<>();
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                Background cell = world.getBackgroundCell(col, row);
+                if (cell != null) {
+                    palette.putIfAbsent(cell.id, palette.size());
+                }
+            }
+        }
+        if (palette.size() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("too many distinct backgrounds for a snapshot");
+        }
+
+        int paletteBytes = 0;
+        for (String id : palette.keySet()) {
+            paletteBytes += Short.BYTES + id.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + 1 + Long.BYTES + Integer.BYTES + paletteBytes
+                + world.numRows * world.numCols * Short.BYTES);
+        buffer.putInt(world.numRows).putInt(world.numCols);
+        buffer.put((byte) (world.seeded ? 1 : 0)).putLong(world.seeded ? world.seed : 0);
+        buffer.putInt(palette.size());
+        for (String id : palette.keySet()) {
+            putString(buffer, id);
+        }
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                Background cell = world.getBackgroundCell(col, row);
+                buffer.putShort(cell == null ? NO_TILE : palette.get(cell.id).shortValue());
+            }
+        }
+        return buffer.array();
+    }
+
+    public static void write(WorldModel world, Path path) throws IOException {
+        Files.write(path, toBytes(world));
+    }
+
+    public static byte[] toBytes(WorldModel world) {
+        byte[] grid = gridBytes(world);
+
+        ByteBuffer ids = ByteBuffer.allocate(1024);
+        List<Entity> entities = new ArrayList<>();
+        int[] idOffsets = new int[world.entities.size()];
+        for (Entity entity : world.entities) {
+            idOffsets[entities.size()] = ids.position();
+            ids = putString(ensure(ids, Short.BYTES + 3 * entity.getId().length()), entity.getId());
+            entities.add(entity);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + grid.length
+                + Integer.BYTES + entities.size() * RECORD_SIZE + Integer.BYTES + ids.position());
+
+        buffer.putInt(MAGIC).putInt(VERSION).put(grid);
+
+        buffer.putInt(entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = entities.get(i);
+            buffer.putInt(entity.getKind().ordinal()).putInt(entity.getX()).putInt(entity.getY()).putInt(idOffsets[i]);
+            buffer.putInt(entity.getResourceLimit()).putInt(entity.getResourceCount()).putInt(entity.getHealth()).putInt(entity.getHealthLimit());
+            buffer.putInt(entity.store.imageIndex[entity.handle]).putInt(0);
+            buffer.putDouble(entity.getActionPeriod()).putDouble(entity.store.animationPeriod[entity.handle]);
+        }
+        buffer.putInt(ids.position());
+        buffer.put(ids.flip());
+        return buffer.array();
+    }
+
+    /*
+       Writes the world in the world.sav text format.
+     */
+    public static String toText(WorldModel world) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Rows:\n").append(world.numRows).append('\n');
+        sb.append("Cols:\n").append(world.numCols).append('\n');
+        if (world.seeded) {
+            sb.append("Seed:\n").append(world.seed).append('\n');
+        }
+
+        sb.append("Backgrounds:\n");
+        for (int row = 0; row < world.numRows; row++) {
+            StringJoiner cells = new StringJoiner(" ");
+            for (int col = 0; col < world.numCols; col++) {
+                Background cell = world.getBackgroundCell(col, row);
+                cells.add(cell == null ? VirtualWorld.DEFAULT_IMAGE_NAME : cell.id);
+            }
+            sb.append(cells).append('\n');
+        }
+
+        sb.append("Entities:\n");
+        for (Entity entity : world.entities) {
+            sb.append(imageKey(entity.getKind())).append(' ').append(entity.getId()).append(' ').append(entity.getX()).append(' ').append(entity.getY());
+            double actionPeriod = entity.getActionPeriod();
+            double animationPeriod = entity.store.animationPeriod[entity.handle];
+            switch (entity.getKind()) {
+                case DUDE_FULL, DUDE_NOT_FULL -> sb.append(' ').append(actionPeriod).append(' ').append(animationPeriod).append(' ').append(entity.getResourceLimit());
+                case FAIRY -> sb.append(' ').append(animationPeriod).append(' ').append(actionPeriod);
+                case TREE -> sb.append(' ').append(animationPeriod).append(' ').append(actionPeriod).append(' ').append(entity.getHealth());
+                case OBSTACLE -> sb.append(' ').append(animationPeriod);
+                case SAPLING -> sb.append(' ').append(entity.getHealth());
+                default -> { }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /*
+       The save file key, which is also the image key, for each kind.
+       A full dude is saved as a plain dude.
+     */
+    public static String imageKey(EntityKind kind) {
+        return switch (kind) {
+            case DUDE_FULL, DUDE_NOT_FULL -> Functions.DUDE_KEY;
+            case FAIRY -> Functions.FAIRY_KEY;
+            case TREE -> Functions.TREE_KEY;
+            case SAPLING -> Functions.SAPLING_KEY;
+            case STUMP -> Functions.STUMP_KEY;
+            case OBSTACLE -> Functions.OBSTACLE_KEY;
+            case HOUSE -> Functions.HOUSE_KEY;
+        };
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("id too long for a snapshot");
+        }
+        return buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        return grown.put(buffer.flip());
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: WorldSnapshot in out");
+            return;
+        }
+        Path in = Path.of(args[0]);
+        Path out = Path.of(args[1]);
+        ImageStore imageStore = new ImageStore(null);
+        try {
+            if (isSnapshot(in)) {
+                Files.writeString(out, toText(read(in, imageStore)), StandardCharsets.UTF_8);
+            } else {
+                WorldModel world = new WorldModel();
+                world.load(new Scanner(in, StandardCharsets.UTF_8), imageStore, null);
+                write(world, out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,6 +1,19 @@
-import java.util.List;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import processing.awt.PGraphicsJava2D;
+import processing.core.PApplet;
+import processing.core.PImage;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -14,6 +27,19 @@ public class WorldTests {
         return sb.toString();
     }
 
+    /*
+       An offscreen Java2D surface that also serves as the screen's
+       graphics, for drawing without a window.
+     */
+    public static PGraphicsJava2D offscreen(PApplet screen, int width, int height) {
+        PGraphicsJava2D graphics = new PGraphicsJava2D();
+        graphics.setParent(screen);
+        graphics.setPrimary(false);
+        graphics.setSize(width, height);
+        screen.g = graphics;
+        return graphics;
+    }
+
     @Test
     public void testTreeAnimation() {
         String sav = makeSave(1, 1, "tree mytree 0 0 0.250 100.0 1");
@@ -204,4 +230,860 @@ public class WorldTests {
 
         assertTrue(entities.stream().anyMatch("mydude 4 2 0"::equals));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFindNearestMatchesLinearScan() {
+        Random rand = new Random(203);
+        List<String> lines = new ArrayList<>();
+        Set<Point> used = new HashSet<>();
+        while (lines.size() < 400) {
+            Point pt = new Point(rand.nextInt(60), rand.nextInt(45));
+            if (used.add(pt)) {
+                String key = rand.nextBoolean() ? "tree" : rand.nextBoolean() ? "sapling" : "house";
+                String props = switch (key) {
+                    case "tree" -> " 1.0 1.0 1";
+                    case "sapling" -> " 0";
+                    default -> "";
+                };
+                lines.add(String.format("%s e%d %d %d%s", key, lines.size(), pt.x, pt.y, props));
+            }
+        }
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(makeSave(45, 60, lines.toArray(new String[0]))), new ImageStore(null), null);
+
+        List<EntityKind> kinds = List.of(EntityKind.TREE, EntityKind.SAPLING);
+        for (int y = 0; y < 45; y++) {
+            for (int x = 0; x < 60; x++) {
+                Point pos = new Point(x, y);
+                Entity expected = null;
+                int expectedDistance = 0;
+                for (EntityKind kind : kinds) {
+                    for (Entity entity : world.entities) {
+                        int dx = entity.getX() - x;
+                        int dy = entity.getY() - y;
+                        if (entity.getKind() == kind && (expected == null || dx * dx + dy * dy < expectedDistance)) {
+                            expected = entity;
+                            expectedDistance = dx * dx + dy * dy;
+                        }
+                    }
+                }
+                assertSame(expected, world.findNearest(pos, kinds).orElse(null), pos.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testUnscheduleCancelsLazily() {
+        EventScheduler scheduler = new EventScheduler();
+        EntityStore store = new EntityStore();
+        Entity kept = Entity.createStump(store, "kept", new Point(0, 0), null);
+        Entity dropped = Entity.createStump(store, "dropped", new Point(1, 0), null);
+        List<String> executed = new ArrayList<>();
+
+        scheduler.scheduleEvent(kept, s -> executed.add("kept"), 1.0);
+        scheduler.scheduleEvent(dropped, s -> executed.add("dropped"), 0.5);
+        scheduler.scheduleEvent(dropped, s -> executed.add("dropped"), 1.5);
+        scheduler.unscheduleAllEvents(dropped);
+
+        assertEquals(1, scheduler.liveEvents);
+        assertEquals(2, scheduler.deadEvents);
+
+        scheduler.updateOnTime(2.0);
+
+        assertEquals(List.of("kept"), executed);
+        assertTrue(scheduler.pendingEvents.isEmpty());
+        assertEquals(0, scheduler.liveEvents);
+        assertEquals(0, scheduler.deadEvents);
+        assertTrue(scheduler.eventQueue.isEmpty());
+    }
+
+    @Test
+    public void testTimingWheelOrdering() {
+        Random rand = new Random(203);
+        EventQueue queue = new TimingWheelEventQueue();
+        List<Event> expected = new ArrayList<>();
+        double now = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 200; i++) {
+                double time = now + (rand.nextInt(4) == 0 ? rand.nextInt(3) * 0.05 : rand.nextDouble() * (rand.nextBoolean() ? 1.4 : 5000.0));
+                Event event = new Event(null, time, null);
+                queue.add(event);
+                expected.add(event);
+            }
+            expected.sort(Comparator.comparingLong((Event e) -> e.tick).thenComparingLong(e -> e.sequence));
+            for (int i = 0; i < 150; i++) {
+                Event next = queue.poll();
+                assertSame(expected.remove(0), next);
+                now = next.time;
+            }
+        }
+        while (!queue.isEmpty()) {
+            assertSame(expected.remove(0), queue.poll());
+        }
+        assertTrue(expected.isEmpty());
+    }
+
+    @Test
+    public void testTimingWheelAnimation() {
+        String sav = makeSave(1, 1, "tree mytree 0 0 0.250 100.0 1");
+        List<String> entities = VirtualWorld.headlessMain(new String[]{VirtualWorld.WHEEL_FLAG, sav}, 5);
+
+        assertEquals(1, entities.size());
+        assertEquals("mytree 0 0 20", entities.get(0));
+    }
+
+    @Test
+    public void testSteadyStateTickAllocatesNothing() {
+        String sav = makeSave(2, 3, "tree  0 0 0.050 0.300 3", "tree  1 0 0.110 1.400 2", "obstacle  2 0 0.070", "obstacle  0 1 0.500", "tree  1 1 0.600 1.000 1");
+        WorldModel world = new WorldModel();
+        ImageStore imageStore = new ImageStore(null);
+        world.load(new Scanner(sav), imageStore, null);
+        EventScheduler scheduler = new EventScheduler();
+        for (Entity entity : world.entities) {
+            scheduler.scheduleActions(entity, world, imageStore);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 20; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            scheduler.updateOnTime(10);
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void testMovingAgentsAllocateNothing() {
+        // lanes of agents, far enough from their targets that none arrives
+        // while measured, and enough of them to warm up the moving code
+        List<String> lines = new ArrayList<>();
+        for (int lane = 0; lane < 10; lane++) {
+            lines.add("dude d" + lane + " 0 " + 2 * lane + " 4.0 0.300 2");
+            lines.add("tree t" + lane + " 63 " + 2 * lane + " 0.500 1.000 3");
+            lines.add("fairy f" + lane + " 0 " + (2 * lane + 1) + " 0.700 4.0");
+            lines.add("stump s" + lane + " 63 " + (2 * lane + 1));
+        }
+        String sav = makeSave(20, 64, lines.toArray(new String[0]));
+        WorldModel world = new WorldModel();
+        ImageStore imageStore = new ImageStore(null);
+        world.load(new Scanner(sav), imageStore, null);
+        EventScheduler scheduler = new EventScheduler();
+        for (Entity entity : world.entities) {
+            scheduler.scheduleActions(entity, world, imageStore);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 20; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            scheduler.updateOnTime(10);
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+
+        assertEquals(0, allocated);
+        // both agents were walking the whole time
+        for (Entity entity : world.entities) {
+            if (entity.getKind() == EntityKind.DUDE_NOT_FULL || entity.getKind() == EntityKind.FAIRY) {
+                assertTrue(entity.getX() > 40 && entity.getX() < 62, entity.log());
+            }
+        }
+    }
+
+    @Test
+    public void testAnalyticAnimation() {
+        String sav = makeSave(1, 3, "tree mytree 0 0 0.250 100.0 1", "fairy myfairy 1 0 0.100 100.0", "obstacle myobstacle 2 0 0.500");
+        List<String> entities = VirtualWorld.headlessMain(new String[]{VirtualWorld.ANALYTIC_FLAG, sav}, 8);
+
+        assertEquals(3, entities.size());
+        assertTrue(entities.contains("mytree 0 0 32"));
+        assertTrue(entities.contains("myfairy 1 0 80"));
+        assertTrue(entities.contains("myobstacle 2 0 16"));
+    }
+
+    @Test
+    public void testBenchmarkCountsEvents() {
+        String sav = makeSave(1, 1, "tree mytree 0 0 0.250 1.0 1");
+        Benchmark benchmark = Benchmark.parseCommandLine(new String[]{sav, Benchmark.SIM_SECONDS_OPTION, "5", Benchmark.STEP_OPTION, "0.5"});
+        benchmark.run();
+
+        assertEquals(20, benchmark.executedEvents[ActionKind.ANIMATION.ordinal()]);
+        assertEquals(5, benchmark.executedEvents[ActionKind.ACTIVITY.ordinal()]);
+        assertEquals(2, benchmark.peakQueueDepth);
+    }
+
+    @Test
+    public void testMonteCarloRunsIndependentWorlds() {
+        String sav = makeSave(2, 2, "fairy  1 0 100.0 0.100", "stump mystump 0 0");
+        MonteCarlo monteCarlo = new MonteCarlo(sav, 8, new ImageStore(null), new VirtualWorld());
+        MonteCarlo.Summary summary = new MonteCarlo.Summary();
+        Set<Integer> runs = new HashSet<>();
+
+        monteCarlo.run(16, 4, result -> {
+            runs.add(result.run);
+            summary.accept(result);
+            assertEquals(List.of("tree_sapling_mystump"), result.log.stream().map(log -> log.split(" ", 2)[0]).filter(id -> id.startsWith("tree")).toList());
+        });
+
+        assertEquals(16, runs.size());
+        assertEquals(16, summary.runs);
+        assertEquals(1.0, summary.population.get(EntityKind.TREE).getAverage());
+        assertEquals(1.0, summary.population.get(EntityKind.FAIRY).getAverage());
+    }
+
+    @Test
+    public void testSeededRunsAreReproducible() {
+        String sav = makeSave(3, 3, "sapling a 0 0 0", "sapling b 2 0 0", "sapling c 0 2 0", "sapling d 2 2 0");
+        List<String> first = VirtualWorld.headlessMain(new String[]{VirtualWorld.SEED_FLAG, "42", sav}, 30);
+        List<String> second = VirtualWorld.headlessMain(new String[]{VirtualWorld.SEED_FLAG, "42", sav}, 30);
+        List<String> fromSave = VirtualWorld.headlessMain(new String[]{"Seed:\n42\n" + sav}, 30);
+
+        assertEquals(first, second);
+        assertEquals(first, fromSave);
+    }
+
+    @Test
+    public void testPackedPointRoundTrip() {
+        for (Point pt : List.of(new Point(0, 0), new Point(-1, -1), new Point(7, -3), new Point(Integer.MIN_VALUE, Integer.MAX_VALUE))) {
+            long key = pt.pack();
+            assertEquals(pt.x, Point.x(key));
+            assertEquals(pt.y, Point.y(key));
+            assertEquals(pt, Point.unpack(key));
+        }
+        assertNotEquals(Point.pack(1, 2), Point.pack(2, 1));
+
+        Viewport viewport = new Viewport(3, 4);
+        viewport.shift(5, 6);
+        assertEquals(Point.pack(6, 8), viewport.viewportToWorld(1, 2));
+        assertEquals(Point.pack(-5, -6), viewport.worldToViewport(0, 0));
+        assertTrue(viewport.contains(Point.pack(8, 8)));
+        assertFalse(viewport.contains(Point.pack(9, 8)));
+    }
+
+    @Test
+    public void testFlowFieldRoutesAroundObstacles() {
+        String sav = makeSave(15, 20, "fairy myfairy 10 9 100.0 0.300", "obstacle  9 11 1.126", "obstacle  10 12 1.126", "obstacle  11 11 1.126", "stump  10 14", "stump  0 0", "house  10 8");
+        List<String> entities = VirtualWorld.headlessMain(new String[]{VirtualWorld.FLOW_FIELD_FLAG, sav}, 5);
+
+        assertFalse(entities.contains("myfairy 10 11 0"));
+        assertTrue(entities.stream().anyMatch(log -> log.startsWith("sapling_ 10 14 ")), entities.toString());
+    }
+
+    @Test
+    public void testFlowFieldMatchesBreadthFirstDistances() {
+        String sav = makeSave(3, 5, "obstacle  1 0 1.0", "obstacle  1 1 1.0", "stump  2 1", "tree  4 0 1.0 1.0 1");
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(sav), new ImageStore(null), null);
+        world.enableFlowFields();
+
+        FlowField dudes = world.getFlowField(List.of(EntityKind.TREE, EntityKind.SAPLING), true);
+        assertEquals(0, dudes.distance(Point.pack(4, 0)));
+        assertEquals(2, dudes.distance(Point.pack(2, 0)));
+        assertEquals(3, dudes.distance(Point.pack(2, 1)));
+        assertEquals(8, dudes.distance(Point.pack(0, 0)));
+        assertEquals(Point.pack(0, 1), dudes.nextStep(Point.pack(0, 0)));
+
+        world.addEntity(Entity.createSapling(world.spawning, "s", new Point(0, 2), null, 0));
+        assertEquals(2, dudes.distance(Point.pack(0, 0)));
+
+        FlowField fairies = world.getFlowField(List.of(EntityKind.STUMP), false);
+        assertEquals(FlowField.UNREACHABLE, fairies.distance(Point.pack(0, 0)));
+        assertEquals(1, fairies.distance(Point.pack(2, 0)));
+    }
+
+    @Test
+    public void testPathfindingRoutesAroundObstacles() {
+        String sav = makeSave(15, 20, "fairy myfairy 10 9 100.0 0.300", "obstacle  9 11 1.126", "obstacle  10 12 1.126", "obstacle  11 11 1.126", "stump  10 14", "stump  0 0", "house  10 8");
+        List<String> entities = VirtualWorld.headlessMain(new String[]{VirtualWorld.PATHFINDING_FLAG, sav}, 5);
+
+        assertFalse(entities.contains("myfairy 10 11 0"));
+        assertTrue(entities.stream().anyMatch(log -> log.startsWith("sapling_ 10 14 ")), entities.toString());
+    }
+
+    @Test
+    public void testPathfindingCrossesClusters() {
+        List<String> lines = new ArrayList<>(List.of("dude mydude 2 2 0.100 100.0 1", "tree mytree 28 2 100.0 0.100 1"));
+        for (int y = 0; y < 27; y++) {
+            lines.add(String.format("obstacle  15 %d 1.0", y));
+        }
+        String sav = makeSave(30, 30, lines.toArray(new String[0]));
+
+        List<String> greedy = VirtualWorld.headlessMain(new String[]{sav}, 12);
+        assertTrue(greedy.contains("mytree 28 2 0"), greedy.toString());
+
+        List<String> entities = VirtualWorld.headlessMain(new String[]{VirtualWorld.PATHFINDING_FLAG, sav}, 12);
+        assertTrue(entities.stream().anyMatch(log -> log.startsWith("stump_mytree 28 2 ")), entities.toString());
+    }
+
+    @Test
+    public void testUnreachableGoalSearchedOncePerGraphChange() {
+        List<String> lines = new ArrayList<>(List.of("dude mydude 2 2 0.100 100.0 1", "tree mytree 28 2 100.0 0.100 1"));
+        for (int y = 0; y < 30; y++) {
+            lines.add(String.format("obstacle  15 %d 1.0", y));
+        }
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(makeSave(30, 30, lines.toArray(new String[0]))), new ImageStore(null), null);
+        world.enablePathfinding();
+        Navigator navigator = world.getNavigator(true);
+        Entity dude = world.getOccupant(new Point(2, 2)).get();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Point.pack(2, 2), navigator.nextStep(dude, Point.pack(2, 2), Point.pack(28, 2)));
+            assertEquals(Point.pack(3, 4), navigator.nextStep(dude, Point.pack(3, 4), Point.pack(27, 6)));
+        }
+        assertEquals(1, navigator.searches);
+
+        world.removeEntity(new EventScheduler(), world.getOccupant(new Point(15, 20)).get());
+        assertNotEquals(Point.pack(2, 2), navigator.nextStep(dude, Point.pack(2, 2), Point.pack(28, 2)));
+        assertEquals(2, navigator.searches);
+    }
+
+    @Test
+    public void testSearchLimitFallsBackToGreedyStep() {
+        String sav = makeSave(400, 400, "dude mydude 1 1 0.100 100.0 1", "tree mytree 390 390 100.0 0.100 1",
+                "obstacle  389 390 1.0", "obstacle  391 390 1.0", "obstacle  390 389 1.0", "obstacle  390 391 1.0");
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(sav), new ImageStore(null), null);
+        world.enablePathfinding();
+        Navigator navigator = world.getNavigator(true);
+        Entity dude = world.getOccupant(new Point(1, 1)).get();
+
+        assertEquals(Point.pack(2, 1), navigator.nextStep(dude, Point.pack(1, 1), Point.pack(390, 390)));
+        assertEquals(Point.pack(2, 1), navigator.nextStep(dude, Point.pack(1, 1), Point.pack(390, 390)));
+        assertEquals(2, navigator.searches);
+    }
+
+    @Test
+    public void testEntitiesLiveInTheWorldStore() {
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(makeSave(4, 4, "stump a 0 0", "stump b 1 0")), new ImageStore(null), null);
+        Entity first = world.getOccupant(new Point(0, 0)).get();
+        Entity second = world.getOccupant(new Point(1, 0)).get();
+        assertSame(world.entities, first.store);
+        assertSame(world.entities, second.store);
+
+        Entity added = Entity.createStump(world.spawning, "c", new Point(2, 0), null);
+        Entity pending = Entity.createStump(world.spawning, "pending", new Point(3, 0), null);
+        assertEquals(2, world.entities.size());
+        world.addEntity(added);
+        assertEquals(3, world.entities.size());
+        assertSame(world.spawning, pending.store);
+        assertFalse(world.log().contains("pending 3 0 0"));
+        world.spawning.release(pending);
+
+        world.removeEntity(new EventScheduler(), first);
+        assertNull(first.store);
+        assertEquals(-1, first.handle);
+        assertEquals(2, world.entities.size());
+        assertEquals(List.of("c 2 0 0", "b 1 0 0"), world.log());
+
+        world.addEntity(Entity.createStump(world.spawning, "outside", new Point(4, 4), null));
+        assertThrows(IllegalArgumentException.class, () -> world.tryAddEntity(Entity.createStump(world.spawning, "clash", new Point(1, 0), null)));
+        assertEquals(2, world.entities.size());
+        assertTrue(world.spawning.isEmpty());
+        assertSame(second, world.getOccupant(new Point(1, 0)).get());
+    }
+
+    @Test
+    public void testCachedTargetsMatchFindNearest() {
+        Random rand = new Random(203);
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(makeSave(40, 40)), new ImageStore(null), null);
+        EventScheduler scheduler = new EventScheduler();
+        List<EntityKind> kinds = List.of(EntityKind.TREE, EntityKind.SAPLING);
+
+        List<Entity> agents = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Point pt = new Point(rand.nextInt(40), rand.nextInt(40));
+            int action = rand.nextInt(10);
+            Optional<Entity> occupant = world.getOccupant(pt);
+            if (occupant.isPresent() && action < 3) {
+                world.removeEntity(scheduler, occupant.get());
+                agents.remove(occupant.get());
+            } else if (occupant.isPresent() && agents.contains(occupant.get())) {
+                world.moveEntity(scheduler, occupant.get(), new Point(Math.max(pt.x - 1, 0), pt.y));
+            } else if (occupant.isEmpty() && action < 6) {
+                world.addEntity(rand.nextBoolean() ? Entity.createTree(world.spawning, "t", pt, 1, 1, 1, null) : Entity.createSapling(world.spawning, "s", pt, null, 0));
+            } else if (occupant.isEmpty()) {
+                Entity agent = Entity.createDudeNotFull(world.spawning, "d", pt, 1, 1, 1, null);
+                world.addEntity(agent);
+                agents.add(agent);
+            }
+            // an agent moved onto another removes it, which invalidates its view
+            agents.removeIf(agent -> !world.entities.contains(agent));
+
+            for (Entity agent : agents) {
+                assertSame(world.findNearest(agent.getPosition(), kinds).orElse(null), world.findNearestCached(agent, kinds));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        String sav = "Seed:\n7\n" + makeSave(3, 4, "dude mydude 0 1 0.5 0.25 3", "fairy myfairy 1 1 0.1 0.3", "tree  2 1 0.2 1.1 2", "sapling s 3 1 1",
+                "obstacle o 0 2 0.7", "house h 1 2", "stump  2 2")
+                .replace("Entities:", "Backgrounds:\ngrass dirt grass grass\nflowers grass grass dirt\ngrass grass grass bridge\nEntities:");
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(sav), new ImageStore(null), null);
+
+        Path file = Files.createTempFile("world", ".vwb");
+        try {
+            WorldSnapshot.write(world, file);
+            assertTrue(WorldSnapshot.isSnapshot(file));
+            WorldModel loaded = WorldSnapshot.read(file, new ImageStore(null));
+
+            assertEquals(world.log(), loaded.log());
+            assertEquals(WorldSnapshot.toText(world), WorldSnapshot.toText(loaded));
+            assertEquals(7, loaded.seed);
+            assertEquals(VirtualWorld.headlessMain(new String[]{sav}, 5), VirtualWorld.headlessMain(new String[]{file.toString()}, 5));
+        } finally {
+            Files.delete(file);
+        }
+
+        WorldModel reparsed = new WorldModel();
+        reparsed.load(new Scanner(WorldSnapshot.toText(world)), new ImageStore(null), null);
+        assertEquals(WorldSnapshot.toText(world), WorldSnapshot.toText(reparsed));
+    }
+
+    @Test
+    public void testChunkEvictionKeepsBackgrounds() {
+        String[] tiles = {"grass", "dirt", "flowers", "bridge"};
+        StringBuilder backgrounds = new StringBuilder("Backgrounds:\n");
+        for (int row = 0; row < 200; row++) {
+            StringJoiner cells = new StringJoiner(" ");
+            for (int col = 0; col < 200; col++) {
+                cells.add(tiles[(row * 7 + col * 3) % tiles.length]);
+            }
+            backgrounds.append(cells).append('\n');
+        }
+        String sav = makeSave(200, 200, "dude mydude 1 1 0.5 0.25 3", "tree mytree 190 190 0.2 1.1 2")
+                .replace("Entities:", backgrounds + "Entities:");
+
+        WorldModel unbounded = new WorldModel();
+        unbounded.load(new Scanner(sav), new ImageStore(null), null);
+        WorldModel bounded = new WorldModel();
+        bounded.memoryBudget = 4 * WorldChunks.CHUNK_BYTES;
+        bounded.load(new Scanner(sav), new ImageStore(null), null);
+
+        assertEquals(WorldSnapshot.toText(unbounded), WorldSnapshot.toText(bounded));
+        assertTrue(bounded.chunks.residentChunks() <= 4);
+        assertEquals(16, unbounded.chunks.residentChunks());
+        for (int row = 0; row < 200; row += 13) {
+            for (int col = 0; col < 200; col += 11) {
+                assertEquals(tiles[(row * 7 + col * 3) % tiles.length], bounded.getBackgroundCell(col, row).id);
+            }
+        }
+        assertEquals(unbounded.log(), bounded.log());
+        assertEquals("mydude 1 1 0", bounded.getOccupancyCell(1, 1).log());
+    }
+
+    @Test
+    public void testChunkEvictionParksStationaryEntities() {
+        List<String> lines = new ArrayList<>(List.of("dude mydude 1 1 0.5 0.25 3"));
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                lines.add(String.format("stump s%d_%d %d %d", col, row, col * WorldChunks.CHUNK_SIZE + 5, row * WorldChunks.CHUNK_SIZE + 7));
+            }
+        }
+        String sav = makeSave(200, 200, lines.toArray(new String[0])).replace("Entities:", "Backgrounds:\ngrass\nEntities:");
+        WorldModel world = new WorldModel();
+        world.memoryBudget = 4 * WorldChunks.CHUNK_BYTES;
+        world.load(new Scanner(sav), new ImageStore(null), null);
+        for (int row = 0; row < 200; row += 50) {
+            for (int col = 0; col < 200; col += 50) {
+                world.getBackgroundCell(col, row);
+            }
+        }
+        assertTrue(world.chunks.residentChunks() <= 4);
+
+        List<Entity> visited = new ArrayList<>();
+        world.forEachEntityIn(0, 0, 200, 200, visited::add);
+        assertEquals(17, visited.size());
+        assertEquals("mydude 1 1 0", world.getOccupancyCell(1, 1).log());
+        assertEquals("s3_2 197 135 0", world.getOccupancyCell(197, 135).log());
+        assertNull(world.getOccupancyCell(196, 135));
+
+        world.removeEntity(new EventScheduler(), world.getOccupancyCell(133, 71));
+        for (int row = 199; row >= 0; row -= 50) {
+            for (int col = 199; col >= 0; col -= 50) {
+                world.getBackgroundCell(col, row);
+            }
+        }
+        assertTrue(world.chunks.residentChunks() <= 4);
+        assertNull(world.getOccupancyCell(133, 71));
+        assertEquals("s1_3 69 199 0", world.getOccupancyCell(69, 199).log());
+        assertEquals(16, world.entities.size());
+    }
+
+    @Test
+    public void testBackgroundsSharePalette() {
+        String sav = makeSave(2, 3).replace("Entities:", "Backgrounds:\ngrass dirt grass\ndirt grass bridge\nEntities:");
+        WorldModel world = new WorldModel();
+        world.load(new Scanner(sav), new ImageStore(null), null);
+
+        assertSame(world.getBackgroundCell(0, 0), world.getBackgroundCell(2, 0));
+        assertSame(world.getBackgroundCell(0, 0), world.getBackgroundCell(1, 1));
+        assertSame(world.getBackgroundCell(1, 0), world.getBackgroundCell(0, 1));
+        assertEquals("bridge", world.getBackgroundCell(2, 1).id);
+
+        world.setBackgroundCell(2, 1, new Background("dirt", List.of()));
+        assertSame(world.getBackgroundCell(1, 0), world.getBackgroundCell(2, 1));
+        assertEquals(2, world.chunks.findTile("bridge"));
+    }
+
+    @Test
+    public void testParallelParserMatchesScanner() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 3 * SaveFileParser.BLOCK_LINES + 5; i++) {
+            lines.add(String.format("obstacle o%d %d %d 0.5", i, i % 150, i / 150));
+        }
+        lines.add("dude mydude 149 149 0.5 0.25 3");
+        String sav = "Seed:\n3\n" + makeSave(150, 150, lines.toArray(new String[0]));
+
+        Path file = Files.createTempFile("world", ".sav");
+        try {
+            Files.writeString(file, sav);
+            WorldModel parsed = new WorldModel();
+            SaveFileParser parser = SaveFileParser.load(parsed, file, new ImageStore(null), null);
+            WorldModel scanned = new WorldModel();
+            scanned.load(new Scanner(sav), new ImageStore(null), null);
+
+            assertEquals(lines.size(), parser.entityLines);
+            assertEquals(parser.report(), parsed.loadReport);
+            assertEquals(WorldSnapshot.toText(scanned), WorldSnapshot.toText(parsed));
+            assertEquals(scanned.log(), parsed.log());
+
+            // a clash in an early block wins over a bad line in a later one
+            lines.set(2 * SaveFileParser.BLOCK_LINES, "obstacle");
+            lines.set(10, "house clash 0 0");
+            Files.writeString(file, makeSave(150, 150, lines.toArray(new String[0])));
+            IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                    () -> SaveFileParser.load(new WorldModel(), file, new ImageStore(null), null));
+            assertEquals("position occupied", error.getMessage());
+            assertTrue(error.getSuppressed()[0].getMessage().contains(" entities) in "), error.getSuppressed()[0].getMessage());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCheckpointResumesSimulation() throws IOException {
+        String sav = "Seed:\n5\n" + makeSave(12, 12, "dude d1 0 0 0.71 0.13 2", "dude d2 11 11 0.93 0.17 3", "tree t1 3 2 0.29 1.07 2",
+                "tree t2 8 9 0.31 1.13 3", "tree t3 6 4 0.37 0.83 1", "house h 5 5", "obstacle o 2 8 0.43", "stump s 10 1");
+        Path file = Files.createTempFile("world", ".ckp");
+        try {
+            for (String[] flags : new String[][]{{}, {VirtualWorld.WHEEL_FLAG, VirtualWorld.ANALYTIC_FLAG}}) {
+                List<String> args = new ArrayList<>(List.of(flags));
+                args.add(sav);
+                VirtualWorld original = VirtualWorld.headless(args.toArray(new String[0]));
+                original.update(3);
+                Checkpoint checkpoint = new Checkpoint(file);
+                checkpoint.write(original.world, original.scheduler);
+                original.update(0.5);
+                checkpoint.write(original.world, original.scheduler);
+                assertTrue(checkpoint.lastEntities < original.world.entities.size());
+                original.update(4);
+                checkpoint.write(original.world, original.scheduler);
+                checkpoint.close();
+
+                args.set(args.size() - 1, VirtualWorld.RESUME_FLAG);
+                args.add(file.toString());
+                VirtualWorld resumed = VirtualWorld.headless(args.toArray(new String[0]));
+                assertEquals(original.scheduler.currentTime, resumed.scheduler.currentTime);
+                assertEquals(original.scheduler.liveEvents, resumed.scheduler.liveEvents);
+                assertEquals(sorted(original.world.log()), sorted(resumed.world.log()));
+
+                original.update(10);
+                resumed.update(10);
+                assertEquals(sorted(original.world.log()), sorted(resumed.world.log()));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFailedFullRewriteKeepsPreviousCheckpoint(@TempDir Path dir) throws IOException {
+        String sav = "Seed:\n5\n" + makeSave(12, 12, "dude d1 0 0 0.71 0.13 2", "tree t1 3 2 0.29 1.07 2", "house h 5 5");
+        Path file = dir.resolve("world.ckp");
+        VirtualWorld original = VirtualWorld.headless(new String[]{sav});
+        original.update(3);
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.write(original.world, original.scheduler);
+        List<String> saved = sorted(original.world.log());
+        double savedTime = original.scheduler.currentTime;
+
+        // a directory in the way cuts the rewrite short before it replaces the file
+        original.update(2);
+        Files.createDirectory(checkpoint.tempPath);
+        assertThrows(IOException.class, () -> checkpoint.writeFull(original.world, original.scheduler));
+        checkpoint.close();
+
+        VirtualWorld resumed = VirtualWorld.headless(new String[]{VirtualWorld.RESUME_FLAG, file.toString()});
+        assertEquals(savedTime, resumed.scheduler.currentTime);
+        assertEquals(saved, sorted(resumed.world.log()));
+    }
+
+    private static List<String> sorted(List<String> log) {
+        List<String> copy = new ArrayList<>(log);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void testBulkSpawnMatchesOneByOne() {
+        String sav = "Seed:\n9\n" + makeSave(20, 20, "house h 10 10");
+        ImageStore imageStore = new ImageStore(null);
+        List<List<String>> logs = new ArrayList<>();
+        for (boolean bulk : new boolean[]{true, false}) {
+            WorldModel world = VirtualWorld.createWorld(sav, imageStore);
+            EventScheduler scheduler = new EventScheduler();
+            VirtualWorld.scheduleActions(world, scheduler, imageStore);
+            scheduler.updateOnTime(1);
+
+            List<Entity> spawned = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                Point position = new Point(i % 20, i / 20 * 19);
+                spawned.add(i % 4 == 0 ? Entity.createDudeNotFull(world.spawning, "d" + i, position, 0.5, 0.25, 2, List.of())
+                        : Entity.createTree(world.spawning, "t" + i, position, 0.5, 1.0, 2, List.of()));
+            }
+            spawned.add(Entity.createStump(world.spawning, "outside", new Point(25, 25), List.of()));
+            if (bulk) {
+                VirtualWorld.spawn(world, scheduler, imageStore, spawned);
+            } else {
+                for (Entity entity : spawned) {
+                    world.tryAddEntity(entity);
+                    if (world.entities.contains(entity)) {
+                        scheduler.scheduleActions(entity, world, imageStore);
+                    }
+                }
+            }
+            assertEquals(41, world.entities.size());
+            scheduler.updateOnTime(20);
+            logs.add(world.log());
+        }
+        assertEquals(logs.get(0), logs.get(1));
+    }
+
+    @Test
+    public void testSpawnIsAllOrNothing() {
+        ImageStore imageStore = new ImageStore(null);
+        WorldModel world = VirtualWorld.createWorld(makeSave(4, 4, "stump s 2 0"), imageStore);
+        EventScheduler scheduler = new EventScheduler();
+        VirtualWorld.scheduleActions(world, scheduler, imageStore);
+        List<String> before = world.log();
+
+        List<Entity> batch = List.of(Entity.createSapling(world.spawning, "s0", new Point(1, 0), List.of(), 0),
+                Entity.createTree(world.spawning, "t1", new Point(0, 0), 0.5, 1.0, 2, List.of()),
+                Entity.createTree(world.spawning, "t3", new Point(2, 0), 0.5, 1.0, 2, List.of()),
+                Entity.createTree(world.spawning, "t4", new Point(3, 0), 0.5, 1.0, 2, List.of()));
+        assertThrows(IllegalArgumentException.class, () -> VirtualWorld.spawn(world, scheduler, imageStore, batch));
+        assertEquals(before, world.log());
+        assertNull(world.getOccupancyCell(1, 0));
+        assertTrue(world.spawning.isEmpty());
+        assertEquals(0, scheduler.liveEvents);
+
+        List<Entity> clashing = List.of(Entity.createTree(world.spawning, "t5", new Point(0, 1), 0.5, 1.0, 2, List.of()),
+                Entity.createTree(world.spawning, "t6", new Point(0, 1), 0.5, 1.0, 2, List.of()));
+        assertThrows(IllegalArgumentException.class, () -> VirtualWorld.spawn(world, scheduler, imageStore, clashing));
+        assertNull(world.getOccupancyCell(0, 1));
+
+        VirtualWorld.spawn(world, scheduler, imageStore, List.of(Entity.createTree(world.spawning, "t7", new Point(0, 1), 0.5, 1.0, 2, List.of())));
+        assertEquals(2, world.entities.size());
+        assertEquals(2, scheduler.liveEvents);
+    }
+
+    @Test
+    public void testViewRedrawsOnlyDirtyTiles() {
+        WorldModel world = VirtualWorld.createWorld(makeSave(20, 20), new ImageStore(new PImage(2, 2)));
+        PImage image = new PImage(2, 2);
+        Entity stump = Entity.createStump(world.spawning, "stump", new Point(1, 1), List.of(image));
+        world.addEntity(stump);
+
+        PApplet screen = new PApplet();
+        PGraphicsJava2D graphics = offscreen(screen, 10, 10);
+        WorldView view = new WorldView(5, 5, screen, world, 2, 2);
+
+        graphics.beginDraw();
+        view.drawViewport();
+        assertEquals(25, view.lastRedrawn);
+        view.drawViewport();
+        assertEquals(0, view.lastRedrawn);
+
+        world.moveEntity(new EventScheduler(), stump, new Point(2, 1));
+        view.drawViewport();
+        assertEquals(2, view.lastRedrawn);
+
+        // changes outside the view cost nothing
+        world.moveEntity(new EventScheduler(), stump, new Point(10, 10));
+        view.drawViewport();
+        assertEquals(1, view.lastRedrawn);
+        world.moveEntity(new EventScheduler(), stump, new Point(11, 10));
+        view.drawViewport();
+        assertEquals(0, view.lastRedrawn);
+
+        view.shiftView(0, 0);
+        view.drawViewport();
+        assertEquals(0, view.lastRedrawn);
+        view.shiftView(1, 0);
+        view.drawViewport();
+        assertEquals(25, view.lastRedrawn);
+        graphics.endDraw();
+    }
+
+    @Test
+    public void testBackgroundChunksCachedAndInvalidated() {
+        WorldModel world = VirtualWorld.createWorld(makeSave(40, 40), new ImageStore(new PImage(2, 2)));
+
+        PApplet screen = new PApplet();
+        PGraphicsJava2D graphics = offscreen(screen, 10, 10);
+        // the smallest budget still keeps the four chunks a view can overlap
+        WorldView view = new WorldView(5, 5, screen, world, 2, 2, 1);
+        BackgroundCache cache = view.backgroundCache;
+
+        graphics.beginDraw();
+        view.drawViewport();
+        assertEquals(1, cache.rendered);
+        view.shiftView(14, 0);
+        view.drawViewport();
+        assertEquals(2, cache.rendered);
+        view.shiftView(-14, 0);
+        view.drawViewport();
+        assertEquals(2, cache.rendered);
+
+        PImage red = VirtualWorld.createImageColored(2, 2, 0xffff0000);
+        world.setBackgroundCell(1, 1, new Background("red", List.of(red)));
+        view.drawViewport();
+        assertEquals(1, view.lastRedrawn);
+        assertEquals(0xffff0000, graphics.get(3, 3));
+        view.shiftView(1, 0);
+        view.drawViewport();
+        assertEquals(3, cache.rendered);
+        assertEquals(0xffff0000, graphics.get(1, 3));
+
+        for (int i = 0; i < 3; i++) {
+            view.shiftView(10, 10);
+            view.drawViewport();
+        }
+        assertEquals(7, cache.rendered);
+        assertEquals(4, cache.size());
+        graphics.endDraw();
+    }
+
+    @Test
+    public void testRectangleQueryVisitsOnlyCellsInside() {
+        WorldModel world = VirtualWorld.createWorld(makeSave(200, 200), new ImageStore(null));
+        List<Point> positions = List.of(new Point(70, 3), new Point(60, 3), new Point(63, 2),
+                new Point(64, 3), new Point(59, 3), new Point(150, 150), new Point(62, 6));
+        for (int i = 0; i < positions.size(); i++) {
+            world.addEntity(Entity.createStump(world.spawning, "s" + i, positions.get(i), List.of()));
+        }
+
+        List<Point> visited = new ArrayList<>();
+        world.forEachEntityIn(60, 2, 11, 4, entity -> visited.add(entity.getPosition()));
+        assertEquals(List.of(new Point(63, 2), new Point(60, 3), new Point(64, 3), new Point(70, 3)), visited);
+
+        visited.clear();
+        world.forEachEntityIn(-5, -5, 500, 500, entity -> visited.add(entity.getPosition()));
+        assertEquals(positions.size(), visited.size());
+    }
+
+    @Test
+    public void testAtlasSpritesDrawTheirImages() {
+        ImageStore imageStore = new ImageStore(VirtualWorld.createImageColored(2, 2, 0xff0000ff));
+        List<PImage> tree = ImageStore.getImages(imageStore.images, "tree");
+        tree.add(VirtualWorld.createImageColored(2, 2, 0xff00ff00));
+        tree.add(VirtualWorld.createImageColored(2, 3, 0xffff0000));
+        ImageStore.getImages(imageStore.images, "stump").add(tree.get(0));
+        imageStore.freeze();
+        assertThrows(UnsupportedOperationException.class, () -> imageStore.getImageList("tree").add(null));
+
+        imageStore.buildAtlas();
+        List<PImage> sprites = imageStore.getImageList("tree");
+        assertTrue(sprites instanceof RandomAccess);
+        assertSame(sprites.get(0), imageStore.getImageList("stump").get(0));
+        assertSame(imageStore.atlas, ((ImageStore.Sprite) imageStore.defaultImages.get(0)).atlas);
+
+        PGraphicsJava2D graphics = offscreen(new PApplet(), 6, 3);
+        graphics.beginDraw();
+        ImageStore.draw(graphics, sprites.get(0), 0, 0);
+        ImageStore.draw(graphics, sprites.get(1), 2, 0);
+        ImageStore.draw(graphics, imageStore.getImageList("house").get(0), 4, 0);
+        graphics.endDraw();
+        assertEquals(0xff00ff00, graphics.get(1, 1));
+        assertEquals(0xffff0000, graphics.get(3, 2));
+        assertEquals(0xff0000ff, graphics.get(5, 1));
+    }
+
+    @Test
+    public void testKeyedImagesDecodedLazilyAndCached(@TempDir Path dir) throws IOException {
+        BufferedImage source = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        source.setRGB(0, 0, 0xffffff);
+        source.setRGB(1, 0, 0xff0000);
+        Path file = dir.resolve("tree.png");
+        ImageIO.write(source, "png", file.toFile());
+        String imageList = "tree " + file + " 255 255 255 0\n";
+
+        PApplet screen = new PApplet();
+        List<Integer> hits = new ArrayList<>();
+        List<int[]> pixels = new ArrayList<>();
+        for (int run = 0; run < 2; run++) {
+            ImageStore imageStore = new ImageStore(null);
+            imageStore.cacheDir = dir.resolve("cache");
+            imageStore.loadImages(new Scanner(imageList), screen);
+            ImageStore.DeferredImage image = (ImageStore.DeferredImage) imageStore.getImageList("tree").get(0);
+            assertFalse(image.isLoaded());
+
+            PGraphicsJava2D graphics = offscreen(screen, 2, 1);
+            graphics.beginDraw();
+            ImageStore.draw(graphics, image, 0, 0);
+            graphics.endDraw();
+            assertTrue(image.isLoaded());
+            assertEquals(0xffff0000, graphics.get(1, 0));
+            hits.add(imageStore.cacheHits.get());
+            pixels.add(image.pixels.clone());
+        }
+        assertEquals(List.of(0, 1), hits);
+        assertArrayEquals(pixels.get(0), pixels.get(1));
+        assertEquals(0, pixels.get(0)[0] >>> 24);
+    }
+
+    @Test
+    public void testEventOrderIsTransitiveBelowOneMillisecond() {
+        Event a = new Event(null, 0, null);
+        Event b = new Event(null, 0.0009, null);
+        Event c = new Event(null, 0.0018, null);
+        a.sequence = 3;
+        b.sequence = 2;
+        c.sequence = 1;
+        EventComparator comparator = new EventComparator();
+        assertTrue(comparator.compare(a, b) < 0);
+        assertTrue(comparator.compare(b, c) < 0);
+        assertTrue(comparator.compare(a, c) < 0);
+
+        HeapEventQueue queue = new HeapEventQueue();
+        queue.addAll(List.of(c, a, b));
+        assertSame(a, queue.poll());
+        assertSame(b, queue.poll());
+        assertSame(c, queue.poll());
+    }
+
+    @Test
+    public void testOnlyImagesInViewArePrefetched() {
+        VirtualWorld headless = VirtualWorld.headless(new String[]{makeSave(40, 40, "house h 1 1", "stump s 30 30")});
+        for (List<PImage> sequence : headless.imageStore.images.values()) {
+            for (PImage image : sequence) {
+                assertFalse(((ImageStore.DeferredImage) image).isLoaded());
+            }
+        }
+
+        headless.view.prefetchImages();
+        ForkJoinPool.commonPool().awaitQuiescence(10, TimeUnit.SECONDS);
+        assertTrue(((ImageStore.DeferredImage) headless.imageStore.getImageList("house").get(0)).isLoaded());
+        assertTrue(((ImageStore.DeferredImage) headless.imageStore.getImageList(VirtualWorld.DEFAULT_IMAGE_NAME).get(0)).isLoaded());
+        assertFalse(((ImageStore.DeferredImage) headless.imageStore.getImageList("stump").get(0)).isLoaded());
+    }
+}
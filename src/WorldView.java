@@ -1,21 +1,67 @@
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import processing.core.PImage;
 
-import java.util.Optional;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
+/**
+ * Draws the viewport through a persistent offscreen buffer.
+ *
+ * Each frame only the cells marked in the world's DirtyTiles, or whose
+ * occupant now shows a different image than was last drawn, are redrawn
+ * into the buffer; the buffer is copied to the screen only when at least
+ * one cell changed. Comparing images catches both scheduled and analytic
+ * animation without either having to report its frame changes.
+ *
+ * A full redraw, after a shift, blits the background from a
+ * BackgroundCache and then draws only the occupied cells over it.
+ * Entities are found with a rectangle query over the viewport, so a
+ * frame costs the same whatever the world's population.
+ */
 public final class WorldView {
     public PApplet screen;
     public WorldModel world;
     public int tileWidth;
     public int tileHeight;
     public Viewport viewport;
+    public DirtyTiles dirtyTiles;
+    public BackgroundCache backgroundCache;
+    // cells redrawn by the last drawViewport
+    public int lastRedrawn;
+
+    private PGraphics buffer;
+    // the entity image last drawn in each cell, or null if it had none
+    private final PImage[] drawn;
+    // the entity image each cell shows this frame
+    private final PImage[] current;
+    private final Consumer<Entity> collect;
 
     public WorldView(int numRows, int numCols, PApplet screen, WorldModel world, int tileWidth, int tileHeight) {
+        this(numRows, numCols, screen, world, tileWidth, tileHeight, BackgroundCache.DEFAULT_BUDGET);
+    }
+
+    /*
+       backgroundBudget caps the bytes of cached background chunks; see
+       BackgroundCache.
+     */
+    public WorldView(int numRows, int numCols, PApplet screen, WorldModel world, int tileWidth, int tileHeight, long backgroundBudget) {
         this.screen = screen;
         this.world = world;
         this.tileWidth = tileWidth;
         this.tileHeight = tileHeight;
         this.viewport = new Viewport(numRows, numCols);
+        this.dirtyTiles = new DirtyTiles(this.viewport);
+        this.drawn = new PImage[numRows * numCols];
+        this.current = new PImage[numRows * numCols];
+        this.collect = this::collect;
+        this.backgroundCache = new BackgroundCache(screen, world, tileWidth, tileHeight, this.viewport, backgroundBudget);
+        world.dirtyTiles = this.dirtyTiles;
+        world.backgroundCache = this.backgroundCache;
     }
 
     private static int clamp(int value, int low, int high) {
@@ -26,34 +72,86 @@ public final class WorldView {
         int newCol = clamp(this.viewport.col + colDelta, 0, this.world.numCols - this.viewport.numCols);
         int newRow = clamp(this.viewport.row + rowDelta, 0, this.world.numRows - this.viewport.numRows);
 
-        viewport.shift(newCol, newRow);
-    }
-
-    public void drawViewport() {
-        this.drawBackground();
-        drawEntities();
+        if (newCol != this.viewport.col || newRow != this.viewport.row) {
+            viewport.shift(newCol, newRow);
+            this.dirtyTiles.markAll();
+        }
     }
 
-    public void drawEntities() {
-        for (Entity entity : this.world.entities) {
-            Point pos = entity.position;
-
-            if (viewport.contains(pos)) {
-                Point viewPoint = viewport.worldToViewport(pos.x, pos.y);
-                this.screen.image(ImageStore.getCurrentImage(entity), viewPoint.x * this.tileWidth, viewPoint.y * this.tileHeight);
+    /*
+       Starts decoding the image sequences of the backgrounds and entities
+       now in view, so that the first frame rarely waits on a decode.
+     */
+    public void prefetchImages() {
+        Set<List<PImage>> sequences = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.world.forEachEntityIn(this.viewport.col, this.viewport.row, this.viewport.numCols, this.viewport.numRows,
+                entity -> sequences.add(entity.getImages()));
+        for (int row = 0; row < this.viewport.numRows; row++) {
+            for (int col = 0; col < this.viewport.numCols; col++) {
+                long worldPoint = viewport.viewportToWorld(col, row);
+                if (this.world.withinBounds(worldPoint)) {
+                    sequences.add(this.world.getBackgroundCell(Point.x(worldPoint), Point.y(worldPoint)).images);
+                }
             }
         }
+        sequences.forEach(ImageStore::prefetch);
     }
 
-    public void drawBackground() {
+    public void drawViewport() {
+        this.world.chunks.setView(this.viewport.col, this.viewport.row, this.viewport.numCols, this.viewport.numRows);
+        if (this.buffer == null) {
+            this.buffer = this.screen.createGraphics(this.viewport.numCols * this.tileWidth, this.viewport.numRows * this.tileHeight);
+            this.dirtyTiles.markAll();
+        }
+
+        Arrays.fill(this.current, null);
+        this.world.forEachEntityIn(this.viewport.col, this.viewport.row, this.viewport.numCols, this.viewport.numRows, this.collect);
+
+        int redrawn = 0;
+        if (this.dirtyTiles.isAllDirty()) {
+            this.buffer.beginDraw();
+            this.backgroundCache.draw(this.buffer, this.viewport);
+            redrawn = this.drawn.length;
+        }
         for (int row = 0; row < this.viewport.numRows; row++) {
             for (int col = 0; col < this.viewport.numCols; col++) {
-                Point worldPoint = viewport.viewportToWorld(col, row);
-                Optional<PImage> image = world.getBackgroundImage(worldPoint);
-                if (image.isPresent()) {
-                    this.screen.image(image.get(), col * this.tileWidth, row * this.tileHeight);
+                int cell = row * this.viewport.numCols + col;
+                long worldPoint = viewport.viewportToWorld(col, row);
+                PImage image = this.current[cell];
+                if (this.dirtyTiles.isAllDirty()) {
+                    if (image != null) {
+                        ImageStore.draw(this.buffer, image, col * this.tileWidth, row * this.tileHeight);
+                    }
+                } else if (this.dirtyTiles.isDirty(cell) || image != this.drawn[cell]) {
+                    if (redrawn++ == 0) {
+                        this.buffer.beginDraw();
+                    }
+                    drawCell(worldPoint, image, col * this.tileWidth, row * this.tileHeight);
                 }
+                this.drawn[cell] = image;
             }
         }
+        if (redrawn > 0) {
+            this.buffer.endDraw();
+            this.screen.image(this.buffer, 0, 0);
+        }
+        this.dirtyTiles.clear();
+        this.lastRedrawn = redrawn;
+    }
+
+    private void collect(Entity entity) {
+        long pos = entity.getPositionKey();
+        int cell = (Point.y(pos) - this.viewport.row) * this.viewport.numCols + Point.x(pos) - this.viewport.col;
+        this.current[cell] = ImageStore.getCurrentImage(entity);
+    }
+
+    private void drawCell(long worldPoint, PImage image, int x, int y) {
+        if (this.world.withinBounds(worldPoint)) {
+            Background background = this.world.getBackgroundCell(Point.x(worldPoint), Point.y(worldPoint));
+            ImageStore.draw(this.buffer, ImageStore.getCurrentImage(background), x, y);
+        }
+        if (image != null) {
+            ImageStore.draw(this.buffer, image, x, y);
+        }
     }
 }